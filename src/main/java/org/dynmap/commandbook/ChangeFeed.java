@@ -0,0 +1,67 @@
+package org.dynmap.commandbook;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Records marker changes as they are applied: in a ring buffer for MarkerChangeFeed, and in a batch
+ * for the next MarkerChangeEvent.  Changes are recorded on the server thread; the buffer may be read
+ * from any thread.
+ */
+class ChangeFeed implements MarkerChangeFeed {
+    private final MarkerChange[] ring;
+    /* First sequence number this feed holds - continues from a feed it replaced */
+    private final long first;
+    private long latest;
+    private List<MarkerChange> batch = new ArrayList<MarkerChange>();
+    
+    ChangeFeed(int capacity, long latest) {
+        ring = new MarkerChange[Math.max(1, capacity)];
+        this.latest = latest;
+        this.first = latest + 1;
+    }
+    
+    synchronized void record(MarkerChange.Type type, String layer, String id, String world, double x, double y, double z, String label) {
+        latest++;
+        MarkerChange c = new MarkerChange(latest, type, layer, id, world, x, y, z, label);
+        ring[(int)(latest % ring.length)] = c;
+        batch.add(c);
+    }
+    
+    /* Take changes recorded since last call - null if none */
+    synchronized List<MarkerChange> takeBatch() {
+        if(batch.isEmpty())
+            return null;
+        List<MarkerChange> b = batch;
+        batch = new ArrayList<MarkerChange>();
+        return Collections.unmodifiableList(b);
+    }
+    
+    /* Drop batched changes - nobody is listening */
+    synchronized void clearBatch() {
+        batch.clear();
+    }
+    
+    public synchronized long getLatestSequence() {
+        return latest;
+    }
+    
+    public synchronized long getOldestSequence() {
+        return Math.max(first, latest - ring.length + 1);
+    }
+    
+    public synchronized List<MarkerChange> getChangesSince(long sequence) {
+        /* Dropped, or from before a reload - caller must resync */
+        if((sequence < getOldestSequence() - 1) || (sequence > latest))
+            return null;
+        List<MarkerChange> out = new ArrayList<MarkerChange>((int)(latest - sequence));
+        for(long s = sequence + 1; s <= latest; s++)
+            out.add(ring[(int)(s % ring.length)]);
+        return out;
+    }
+    
+    public int getCapacity() {
+        return ring.length;
+    }
+}
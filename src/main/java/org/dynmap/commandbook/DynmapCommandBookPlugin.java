@@ -1,25 +1,49 @@
 package org.dynmap.commandbook;
+import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
 import org.bukkit.Location;
 import org.bukkit.World;
+import org.bukkit.command.Command;
+import org.bukkit.command.CommandSender;
 import org.bukkit.configuration.file.FileConfiguration;
+import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerCommandPreprocessEvent;
 import org.bukkit.event.player.PlayerJoinEvent;
 import org.bukkit.event.player.PlayerQuitEvent;
 import org.bukkit.event.server.PluginEnableEvent;
+import org.bukkit.event.server.ServerCommandEvent;
+import org.bukkit.event.world.SpawnChangeEvent;
+import org.bukkit.event.world.WorldLoadEvent;
+import org.bukkit.event.world.WorldUnloadEvent;
 import org.bukkit.plugin.java.JavaPlugin;
 import org.bukkit.plugin.Plugin;
 import org.bukkit.plugin.PluginManager;
+import org.bukkit.plugin.ServicePriority;
+import org.bukkit.scheduler.BukkitTask;
 import org.dynmap.DynmapAPI;
 import org.dynmap.markers.MarkerAPI;
 import org.dynmap.markers.MarkerIcon;
@@ -30,7 +54,9 @@ import com.sk89q.commandbook.CommandBook;
 import com.sk89q.commandbook.locations.NamedLocation;
 import com.sk89q.commandbook.locations.RootLocationManager;
 import com.sk89q.commandbook.locations.HomesComponent;
+import com.sk89q.commandbook.locations.SpawnLocationsComponent;
 import com.sk89q.commandbook.locations.WarpsComponent;
+import com.sk89q.commandbook.locations.WrappedSpawnManager;
 import com.zachsthings.libcomponents.ComponentManager;
 import com.zachsthings.libcomponents.bukkit.BukkitComponent;
 
@@ -43,6 +69,7 @@ public class DynmapCommandBookPlugin extends JavaPlugin {
     CommandBook commandbook;
     RootLocationManager<NamedLocation> homesmgr;
     RootLocationManager<NamedLocation> warpsmgr;
+    WrappedSpawnManager spawnmgr;
     
     FileConfiguration cfg;
 
@@ -51,146 +78,1060 @@ public class DynmapCommandBookPlugin extends JavaPlugin {
         log = this.getLogger();
     }
     
+    /* Tracks online players, and updates just their markers in layers filtered by player - events within the delay are handled together */
     private class OurPlayerListener implements Listener, Runnable {
+        Set<String> pending = new HashSet<String>();
+        boolean scheduled;
+        
         @SuppressWarnings("unused")
         @EventHandler(priority=EventPriority.MONITOR)
         public void onPlayerJoin(PlayerJoinEvent event) {
-            getServer().getScheduler().scheduleSyncDelayedTask(DynmapCommandBookPlugin.this, this, 10);
+            String name = event.getPlayer().getName();
+            onlineplayers.add(name);
+            if(lastseen != null)
+                lastseen.seen(name, System.currentTimeMillis());
+            rerank(name);
+            playerChanged(name);
         }
         @SuppressWarnings("unused")
         @EventHandler(priority=EventPriority.MONITOR)
         public void onPlayerQuit(PlayerQuitEvent event) {
-            getServer().getScheduler().scheduleSyncDelayedTask(DynmapCommandBookPlugin.this, this, 10);
+            String name = event.getPlayer().getName();
+            onlineplayers.remove(name);
+            if(lastseen != null)
+                lastseen.seen(name, System.currentTimeMillis());
+            rerank(name);
+            playerChanged(name);
+        }
+        /* Layers limited to the most recently seen players rank this one's locations again on next update */
+        private void rerank(String name) {
+            for(Layer l : new Layer[] { homelayer, warplayer }) {
+                if((l != null) && (l.maxmarkers > 0) && (l.caprank == MarkerCap.RANK_SEEN))
+                    l.reranked.add(name);
+            }
+        }
+        private void playerChanged(String name) {
+            pending.add(name);
+            if(!scheduled) {
+                getServer().getScheduler().scheduleSyncDelayedTask(DynmapCommandBookPlugin.this, this, 10);
+                scheduled = true;
+            }
         }
         public void run() {
-            if((!stop) && (homesmgr != null)) {
-                homelayer.updateMarkerSet(homesmgr);
+            scheduled = false;
+            if(!stop) {
+                if((homesmgr != null) && (homelayer != null) && homelayer.isPlayerFiltered()) {
+                    for(String name : pending)
+                        homelayer.updateMarker(homesmgr, name);
+                }
+                if((warpsmgr != null) && (warplayer != null) && warplayer.isPlayerFiltered()) {
+                    for(String name : pending)
+                        warplayer.updateMarker(warpsmgr, name);
+                }
             }
+            pending.clear();
         }
     }
 
-    private class Layer {
-        MarkerSet set;
+    /* Handles CommandBook home and warp commands, so changed markers are updated on the next tick */
+    private class OurCommandListener implements Listener, Runnable {
+        Set<String> pendinghomes = new HashSet<String>();
+        Set<String> pendingwarps = new HashSet<String>();
+        /* Last warp set by each sender ("" for console) - CommandBook asks for /confirm to overwrite a warp */
+        Map<String, String> confirmwarps = new HashMap<String, String>();
+        boolean scheduled;
+        
+        @SuppressWarnings("unused")
+        @EventHandler(priority=EventPriority.MONITOR, ignoreCancelled=true)
+        public void onPlayerCommand(PlayerCommandPreprocessEvent event) {
+            handleCommand(event.getMessage(), event.getPlayer().getName());
+        }
+        @SuppressWarnings("unused")
+        @EventHandler(priority=EventPriority.MONITOR)
+        public void onServerCommand(ServerCommandEvent event) {
+            handleCommand(event.getCommand(), null);
+        }
+        
+        private void handleCommand(String msg, String sender) {
+            if(!commandhooks)
+                return;
+            if(msg.startsWith("/"))
+                msg = msg.substring(1);
+            String[] args = msg.trim().split("\\s+");
+            String cmd = args[0].toLowerCase();
+            if(cmd.startsWith("commandbook:"))
+                cmd = cmd.substring(12);
+            String name = null;
+            Set<String> pending = null;
+            if(cmd.equals("sethome")) {   /* sethome [owner] [location] */
+                name = (args.length > 1) ? args[1] : sender;
+                pending = pendinghomes;
+            }
+            else if(cmd.equals("setwarp")) {  /* setwarp <warp> [location] */
+                name = (args.length > 1) ? args[1] : null;
+                pending = pendingwarps;
+                if(name != null)
+                    confirmwarps.put((sender != null) ? sender.toLowerCase() : "", name);
+            }
+            else if(cmd.equals("confirm")) {  /* confirm [-c] - runs (or clears) the command waiting for it */
+                String key = (sender != null) ? sender.toLowerCase() : "";
+                if(args.length == 1)
+                    name = confirmwarps.remove(key);
+                else if(args[1].startsWith("-") && (args[1].indexOf('c') >= 0))
+                    confirmwarps.remove(key);
+                pending = pendingwarps;
+            }
+            else if((cmd.equals("homes") || cmd.equals("warps")) && (args.length > 1) && isDeleteCommand(args[1])) {
+                if(args.length > 2)   /* homes|warps del <name> [world] */
+                    name = args[2];
+                else if(cmd.equals("homes"))  /* homes del - sender's own home */
+                    name = sender;
+                pending = cmd.equals("homes") ? pendinghomes : pendingwarps;
+            }
+            if(name == null)
+                return;
+            pending.add(name);
+            if(!scheduled) {    /* Command runs after this event - so update on next tick */
+                getServer().getScheduler().scheduleSyncDelayedTask(DynmapCommandBookPlugin.this, this, 1);
+                scheduled = true;
+            }
+        }
+        
+        private boolean isDeleteCommand(String sub) {
+            sub = sub.toLowerCase();
+            return sub.equals("del") || sub.equals("delete") || sub.equals("remove") || sub.equals("rem");
+        }
+        
+        public void run() {
+            scheduled = false;
+            if(!stop) {
+                if((homesmgr != null) && (homelayer != null)) {
+                    for(String name : pendinghomes)
+                        homelayer.updateMarker(homesmgr, name);
+                }
+                if((warpsmgr != null) && (warplayer != null)) {
+                    for(String name : pendingwarps)
+                        warplayer.updateMarker(warpsmgr, name);
+                }
+            }
+            pendinghomes.clear();
+            pendingwarps.clear();
+        }
+    }
+
+    class Layer {
+        final String id;
+        final String deflabel, deficonid, deflabelfmt;
+        /* Markers are kept by dynmap across restarts, and adopted at startup */
+        final boolean persistent;
+        /* Updated from CommandBook's locations - false for spawns, which only change by events */
+        final boolean periodic;
+        /* Split markers into a marker set per world (SHARD_WORLD), or per world and region (SHARD_REGION) */
+        final int shardmode;
+        final int shardsize;
+        /* Marker sets holding this layer's markers, by ID - just commandbook.<id>, unless sharded */
+        Map<String, MarkerSet> sets = new HashMap<String, MarkerSet>();
+        /* Markers in each set - empty shards are removed */
+        Map<String, Integer> setcounts = new HashMap<String, Integer>();
         MarkerIcon deficon;
-        String labelfmt;
-        Set<String> visible;
-        Set<String> hidden;
-        Map<String, Marker> markers = new HashMap<String, Marker>();
-        boolean online_only;
+        /* Read by the async update stage, and replaced on reload */
+        volatile LabelFormat labelfmt;
+        volatile VisibilityRules rules;
+        Map<String, MarkerState> markers = new HashMap<String, MarkerState>();
+        /* IDs of markers, matched without regard to case - CommandBook names are not case sensitive */
+        Map<String, String> markerids = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+        /* Last snapshot of locations, by world - only used by the async update stage */
+        Map<String, WorldSnapshot> lastsnap = new HashMap<String, WorldSnapshot>();
+        /* Watches CommandBook's files for this layer, if enabled */
+        volatile StorageWatcher watcher;
+        /* Reads CommandBook's files directly, if enabled */
+        volatile LocationFileReader filereader;
+        /* Cluster markers shown when zoomed out, if enabled */
+        MarkerClusters clusters;
+        /* Periodic update schedule - each layer has its own, set by layer.<id>.update.period */
+        UpdateScheduler scheduler;
+        /* Tick when next periodic update is due - -1 until first scheduled */
+        long nextupdate = -1;
+        /* IDs updated by events since the current snapshot started - its results are older, so skip them */
+        Set<String> touched = new HashSet<String>();
+        volatile boolean online_only;
+        /* Hide locations of players not seen for this long (milliseconds) - 0 shows all */
+        volatile long maxinactive;
+        /* Show only this many of the best ranked locations (0 = all), ranked by MarkerCap.RANK_* */
+        volatile int maxmarkers;
+        volatile int caprank;
+        /* Keeps the limit - only used by the async update stage, null if no limit */
+        MarkerCap cap;
+        /* Players who came online or left since last update - their locations may rank differently */
+        final Set<String> reranked = new ConcurrentSkipListSet<String>(String.CASE_INSENSITIVE_ORDER);
+        /* Locations hidden by the limit, as of last update */
+        volatile int capped;
+        /* When locations were last all read, so aging ones drop out even if files are unchanged */
+        long lastfullscan;
+        /* Set when settings change - next update reads every world again, and rebuilds every label */
+        final AtomicBoolean fullscan = new AtomicBoolean();
+        final AtomicBoolean relabel = new AtomicBoolean();
+        /* Settings last applied - so a reload only touches what changed */
+        boolean configured;
+        String setlabel;
+        int layerprio;
+        boolean hidebydefault;
+        int minzoom;
+        List<String> visiblelist, hiddenlist;
+        String clustercfg;
+        /* Results of last update pass */
+        int created, updated, deleted, unchanged;
+        /* Marker API calls made - running total, and for current update pass */
+        long apicalls, cycleapicalls;
+        /* Server thread time spent in current update pass */
+        long applynanos;
+        UpdateStats stats;
         
         public Layer(String id, FileConfiguration cfg, String deflabel, String deficon, String deflabelfmt) {
-            set = markerapi.getMarkerSet("commandbook." + id);
-            if(set == null)
-                set = markerapi.createMarkerSet("commandbook."+id, cfg.getString("layer."+id+".name", deflabel), null, false);
-            else
-                set.setMarkerSetLabel(cfg.getString("layer."+id+".name", deflabel));
-            if(set == null) {
+            this.id = id;
+            this.deflabel = deflabel;
+            this.deficonid = deficon;
+            this.deflabelfmt = deflabelfmt;
+            this.persistent = cfg.getBoolean("layer."+id+".persistent", false);
+            this.periodic = (id.equals("spawns") == false);
+            this.shardmode = getShardMode(cfg, id);
+            this.shardsize = getShardSize(cfg, id);
+            stats = new UpdateStats(id);
+            registerStats();
+            setlabel = cfg.getString("layer."+id+".name", deflabel);
+            /* Sets left from last time - adopted if persistent, otherwise start over */
+            String base = "commandbook." + id;
+            for(MarkerSet ms : new ArrayList<MarkerSet>(markerapi.getMarkerSets())) {
+                String sid = ms.getMarkerSetID();
+                if((sid.equals(base) == false) && ((sid.startsWith(base + ".") == false) || sid.equals(base + ".clusters")))
+                    continue;
+                if(persistent && ms.isMarkerSetPersistent())
+                    adoptMarkers(ms);
+                else
+                    ms.deleteMarkerSet();
+            }
+            if((shardmode == SHARD_NONE) && (getSet(null, 0, 0) == null)) {
                 severe("Error creating " + deflabel + " marker set");
                 return;
             }
-            set.setLayerPriority(cfg.getInt("layer."+id+".layerprio", 10));
-            set.setHideByDefault(cfg.getBoolean("layer."+id+".hidebydefault", false));
-            int minzoom = cfg.getInt("layer."+id+".minzoom", 0);
-            if(minzoom > 0) /* Don't call if non-default - lets us work with pre-0.28 dynmap */
-                set.setMinZoom(minzoom);
-            String icon = cfg.getString("layer."+id+".deficon", deficon);
-            this.deficon = markerapi.getMarkerIcon(icon);
-            if(this.deficon == null) {
-                info("Unable to load default icon '" + icon + "' - using default '"+deficon+"'");
-                this.deficon = markerapi.getMarkerIcon(deficon);
-            }
-            labelfmt = cfg.getString("layer."+id+".labelfmt", deflabelfmt);
-            List<String> lst = cfg.getStringList("layer."+id+".visiblemarkers");
-            if(lst != null)
-                visible = new HashSet<String>(lst);
-            lst = cfg.getStringList("layer."+id+".hiddenmarkers");
-            if(lst != null)
-                hidden = new HashSet<String>(lst);
-            online_only = cfg.getBoolean("layer."+id+".online-only", false);
-            if(online_only) {
-                OurPlayerListener lsnr = new OurPlayerListener();
-                
-                getServer().getPluginManager().registerEvents(lsnr, DynmapCommandBookPlugin.this);
-            }
-        }
-        
-        void cleanup() {
-            if(set != null) {
+            configure(cfg);
+            /* Label format may have changed while the server was down - so build all labels again */
+            if(markers.isEmpty() == false)
+                relabel.set(true);
+        }
+        
+        /* Take over the markers dynmap kept from last run, so the first update only changes what differs */
+        private void adoptMarkers(MarkerSet set) {
+            int cnt = 0;
+            String sid = set.getMarkerSetID();
+            for(Marker m : set.getMarkers()) {
+                String mid = m.getMarkerID();
+                int idx = mid.indexOf('/');
+                if((idx <= 0) || (m.isPersistentMarker() == false) || markers.containsKey(mid) ||
+                        (setID(m.getWorld(), m.getX(), m.getZ()).equals(sid) == false)) {  /* Not one of ours, or in the wrong shard */
+                    m.deleteMarker();
+                    continue;
+                }
+                String wname = mid.substring(0, idx);
+                markers.put(mid, new MarkerState(m, m.getWorld(), m.getX(), m.getY(), m.getZ(), m.getLabel(), m.getMarkerIcon()));
+                markerids.put(mid, mid);
+                WorldSnapshot snap = lastsnap.get(wname);
+                if(snap == null) {
+                    snap = new WorldSnapshot(wname);
+                    lastsnap.put(wname, snap);
+                }
+                snap.put(new MarkerRecord(mid, m.getWorld(), mid.substring(idx+1), m.getX(), m.getY(), m.getZ(), m.getLabel()));
+                cnt++;
+            }
+            if((cnt == 0) && (shardmode != SHARD_NONE)) {
                 set.deleteMarkerSet();
-                set = null;
+                return;
             }
-            markers.clear();
+            sets.put(sid, set);
+            setcounts.put(sid, cnt);
+            if(cnt > 0)
+                info("Adopted " + cnt + " existing " + id + " markers from " + sid);
         }
         
-        boolean isVisible(String id, String wname) {
-            if((visible != null) && (visible.isEmpty() == false)) {
-                if((visible.contains(id) == false) && (visible.contains("world:" + wname) == false))
-                    return false;
+        /* ID of marker set for location: commandbook.<id>, commandbook.<id>.<world> or commandbook.<id>.<world>.<x>_<z> */
+        private String setID(String world, double x, double z) {
+            switch(shardmode) {
+                case SHARD_WORLD:
+                    return "commandbook." + id + "." + world;
+                case SHARD_REGION:
+                    return "commandbook." + id + "." + world + "." + (int)Math.floor(x / shardsize) + "_" + (int)Math.floor(z / shardsize);
+                default:
+                    return "commandbook." + id;
             }
-            if((hidden != null) && (hidden.isEmpty() == false)) {
-                if(hidden.contains(id) || hidden.contains("world:" + wname))
+        }
+        
+        /* Check if two locations are in the same marker set */
+        private boolean sameSet(String w1, double x1, double z1, String w2, double x2, double z2) {
+            switch(shardmode) {
+                case SHARD_WORLD:
+                    return w1.equals(w2);
+                case SHARD_REGION:
+                    return w1.equals(w2) && (Math.floor(x1 / shardsize) == Math.floor(x2 / shardsize)) &&
+                        (Math.floor(z1 / shardsize) == Math.floor(z2 / shardsize));
+                default:
+                    return true;
+            }
+        }
+        
+        /* Label of marker set - shards are named after the part of the layer they hold */
+        private String setLabel(String sid) {
+            String base = "commandbook." + id;
+            if(sid.length() <= base.length())
+                return setlabel;
+            return setlabel + " (" + sid.substring(base.length() + 1) + ")";
+        }
+        
+        /* Get marker set for location, creating it with the layer's settings if needed */
+        private MarkerSet getSet(String world, double x, double z) {
+            String sid = setID(world, x, z);
+            MarkerSet ms = sets.get(sid);
+            if(ms == null) {
+                ms = markerapi.getMarkerSet(sid);
+                if(ms == null)
+                    ms = markerapi.createMarkerSet(sid, setLabel(sid), null, persistent);
+                if(ms == null)
+                    return null;
+                apicalls++;
+                if(configured) {    /* Otherwise, configure() is about to set these */
+                    ms.setLayerPriority(layerprio);
+                    ms.setHideByDefault(hidebydefault);
+                    if(minzoom > 0)
+                        ms.setMinZoom(minzoom);
+                }
+                sets.put(sid, ms);
+                setcounts.put(sid, 0);
+            }
+            return ms;
+        }
+        
+        /* Check that our marker sets are still dynmap's - they are gone if dynmap was reloaded */
+        boolean isValid() {
+            if((shardmode == SHARD_NONE) && sets.isEmpty())
+                return false;
+            for(MarkerSet ms : sets.values()) {
+                if(markerapi.getMarkerSet(ms.getMarkerSetID()) != ms)
                     return false;
             }
             return true;
         }
         
-        void updateMarkerSet(RootLocationManager<NamedLocation> mgr) {
-            Map<String, Marker> newmap = new HashMap<String, Marker>(); /* Build new map */
-            /* For each world */
-            for(World w : getServer().getWorlds()) {
-                String wname = w.getName();
-                List<NamedLocation> loclist = mgr.getLocations(w);  /* Get locations in this world */
-                if(loclist == null) continue;
-                
-                for(NamedLocation nl : loclist) {
-                    /* Get location */
-                    Location loc = nl.getLocation();
-                    /* If not world specific list, we may get locations for other worlds - skip them */
-                    if(loc.getWorld() != w)
-                        continue;
-                    /* Get name */
-                    String name = nl.getName();
-                    /* Skip if not visible */
-                    if(isVisible(name, wname) == false)
-                        continue;
-                    /* If online only, check if player is online */
-                    if(online_only && (getServer().getPlayerExact(name) == null))
-                        continue;
-                    String id = wname + "/" + name;
-
-                    String label = labelfmt.replace("%name%", name);
-                    
-                    /* See if we already have marker */
-                    Marker m = markers.remove(id);
-                    if(m == null) { /* Not found?  Need new one */
-                        m = set.createMarker(id, label, wname, loc.getX(), loc.getY(), loc.getZ(), deficon, false);
+        /* Check if settings changed that can only be applied by making the marker sets again */
+        boolean needsRebuild(FileConfiguration cfg) {
+            return (persistent != cfg.getBoolean("layer."+id+".persistent", false)) ||
+                (shardmode != getShardMode(cfg, id)) || (shardsize != getShardSize(cfg, id));
+        }
+        
+        /* Apply settings - on reload, only settings that changed are applied to the existing marker set and markers */
+        void configure(FileConfiguration cfg) {
+            String pfx = "layer." + id + ".";
+            String label = cfg.getString(pfx+"name", deflabel);
+            if((!configured) || (label.equals(setlabel) == false)) {
+                setlabel = label;
+                for(MarkerSet ms : sets.values())
+                    ms.setMarkerSetLabel(setLabel(ms.getMarkerSetID()));
+            }
+            int prio = cfg.getInt(pfx+"layerprio", 10);
+            if((!configured) || (prio != layerprio)) {
+                for(MarkerSet ms : sets.values())
+                    ms.setLayerPriority(prio);
+                layerprio = prio;
+            }
+            boolean hide = cfg.getBoolean(pfx+"hidebydefault", false);
+            if((!configured) || (hide != hidebydefault)) {
+                for(MarkerSet ms : sets.values())
+                    ms.setHideByDefault(hide);
+                hidebydefault = hide;
+            }
+            int mzoom = cfg.getInt(pfx+"minzoom", 0);
+            boolean cluster = cfg.getBoolean(pfx+"cluster.enable", false);
+            int clusterzoom = cfg.getInt(pfx+"cluster.zoom", 3);
+            if(cluster && (clusterzoom > mzoom))  /* Individual markers only show from cluster zoom */
+                mzoom = clusterzoom;
+            if(mzoom != minzoom) { /* Don't call if still default - lets us work with pre-0.28 dynmap */
+                for(MarkerSet ms : sets.values())
+                    ms.setMinZoom(mzoom);
+                minzoom = mzoom;
+            }
+            String icon = cfg.getString(pfx+"deficon", deficonid);
+            MarkerIcon ico = markerapi.getMarkerIcon(icon);
+            if(ico == null) {
+                info("Unable to load default icon '" + icon + "' - using default '"+deficonid+"'");
+                ico = markerapi.getMarkerIcon(deficonid);
+            }
+            if(ico != deficon) {
+                MarkerIcon old = deficon;
+                deficon = ico;
+                /* Only markers still using the old icon need changing - or any other icon, for
+                 * markers adopted at startup */
+                for(MarkerState ms : markers.values()) {
+                    if((ms.icon != ico) && ((old == null) || (ms.icon == old))) {
+                        ms.marker.setMarkerIcon(ico);
+                        ms.icon = ico;
+                        apicalls++;
                     }
-                    else {  /* Else, update position if needed */
-                        m.setLocation(wname, loc.getX(), loc.getY(), loc.getZ());
-                        m.setLabel(label);
-                        m.setMarkerIcon(deficon);
+                }
+            }
+            String fmt = cfg.getString(pfx+"labelfmt", deflabelfmt);
+            if((labelfmt == null) || (fmt.equals(labelfmt.format) == false)) {
+                labelfmt = new LabelFormat(fmt);
+                if(configured) relabel.set(true);
+            }
+            List<String> vis = cfg.getStringList(pfx+"visiblemarkers");
+            List<String> hid = cfg.getStringList(pfx+"hiddenmarkers");
+            if((!configured) || (sameList(vis, visiblelist) == false) || (sameList(hid, hiddenlist) == false)) {
+                rules = new VisibilityRules(vis, hid);
+                visiblelist = vis;
+                hiddenlist = hid;
+                if(configured) fullscan.set(true);
+            }
+            boolean oo = cfg.getBoolean(pfx+"online-only", false);
+            if(oo != online_only) {
+                online_only = oo;
+                if(configured) fullscan.set(true);
+            }
+            long inactive = (long)(cfg.getDouble(pfx+"max-inactive-days", 0.0) * 24 * 3600 * 1000);
+            if(inactive != maxinactive) {
+                maxinactive = inactive;
+                if(configured) fullscan.set(true);
+            }
+            maxmarkers = Math.max(0, cfg.getInt(pfx+"max-markers", 0));
+            caprank = MarkerCap.getRank(cfg.getString(pfx+"max-markers-rank", "recent"));
+            if(online_only || needsLastSeen())
+                registerPlayerListener();
+            if(periodic)
+                scheduler = getScheduler(cfg, id, scheduler);
+            if(periodic && cfg.getBoolean("update.watch-files", true)) {
+                if(watcher == null)
+                    watcher = new StorageWatcher(commandbook.getDataFolder(), id);
+            }
+            else {
+                watcher = null;
+            }
+            if(periodic && cfg.getBoolean("update.direct-read", false)) {
+                if(filereader == null) {
+                    LocationFileReader rdr = new LocationFileReader(commandbook.getDataFolder(), id);
+                    if(rdr.isAvailable())
+                        filereader = rdr;
+                    else if(!configured)
+                        info("No CommandBook " + id + " files found - reading " + id + " through CommandBook");
+                }
+            }
+            else {
+                filereader = null;
+            }
+            String ccfg = null;
+            if(cluster) {
+                ccfg = clusterzoom + "|" + cfg.getInt(pfx+"cluster.cell-size", 512) + "|" + cfg.getString(pfx+"cluster.labelfmt", "%count%") + "|" +
+                    cfg.getString(pfx+"cluster.icon", "") + "|" + cfg.getString(pfx+"cluster.name", "") + "|" + layerprio + "|" + hidebydefault + "|" + setlabel;
+            }
+            if((ccfg == null) ? (clustercfg != null) : (ccfg.equals(clustercfg) == false)) {
+                if(clusters != null) {
+                    clusters.cleanup();
+                    clusters = null;
+                }
+                if(cluster) {
+                    initClusters(id, cfg, clusterzoom);
+                    if(clusters != null) {  /* Count markers we already have */
+                        for(MarkerState ms : markers.values())
+                            clusters.add(ms.world, ms.x, ms.y, ms.z);
+                        flushClusters();
                     }
-                    newmap.put(id, m);    /* Add to new map */
                 }
+                clustercfg = ccfg;
+            }
+            configured = true;
+        }
+        
+        private boolean sameList(List<String> a, List<String> b) {
+            return (a == null) ? (b == null) : a.equals(b);
+        }
+        
+        private void initClusters(String id, FileConfiguration cfg, int zoom) {
+            String label = cfg.getString("layer."+id+".cluster.name", setlabel + " (clusters)");
+            MarkerSet cset = markerapi.getMarkerSet("commandbook." + id + ".clusters");
+            if(cset != null)    /* Start fresh - cell counts are built up as markers are added */
+                cset.deleteMarkerSet();
+            cset = markerapi.createMarkerSet("commandbook." + id + ".clusters", label, null, false);
+            if(cset == null) {
+                severe("Error creating " + label + " marker set");
+                return;
             }
-            /* Now, review old map - anything left is gone */
-            for(Marker oldm : markers.values()) {
-                oldm.deleteMarker();
+            cset.setLayerPriority(layerprio);
+            cset.setHideByDefault(hidebydefault);
+            try {
+                cset.setMaxZoom(zoom - 1);
+            } catch (LinkageError le) {    /* Older dynmap without max zoom */
+                info("Dynmap does not support maximum zoom - clusters will show at all zoom levels");
+            }
+            MarkerIcon cicon = markerapi.getMarkerIcon(cfg.getString("layer."+id+".cluster.icon", ""));
+            if(cicon == null)
+                cicon = deficon;
+            clusters = new MarkerClusters(cset, cicon, cfg.getString("layer."+id+".cluster.labelfmt", "%count%"),
+                cfg.getInt("layer."+id+".cluster.cell-size", 512));
+        }
+        
+        /* Publish statistics through JMX */
+        private void registerStats() {
+            try {
+                MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+                ObjectName name = statsName();
+                if(mbs.isRegistered(name))
+                    mbs.unregisterMBean(name);
+                mbs.registerMBean(stats, name);
+            } catch (JMException jx) {
+                info("Unable to register statistics for " + stats.layer + " - " + jx.getMessage());
+            }
+        }
+        
+        private ObjectName statsName() throws MalformedObjectNameException {
+            return new ObjectName("org.dynmap.commandbook:type=UpdateStats,layer=" + stats.layer);
+        }
+        
+        /* Release layer - marker sets are deleted unless keep is set and the layer is persistent */
+        void cleanup(boolean keep) {
+            try {
+                MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+                ObjectName name = statsName();
+                if(mbs.isRegistered(name))
+                    mbs.unregisterMBean(name);
+            } catch (JMException jx) {
+            }
+            if(!(keep && persistent)) {
+                for(MarkerSet ms : sets.values())
+                    ms.deleteMarkerSet();
+            }
+            sets.clear();
+            setcounts.clear();
+            if(clusters != null) {
+                clusters.cleanup();
+                clusters = null;
             }
-            /* And replace with new map */
             markers.clear();
-            markers = newmap;
+            markerids.clear();
+        }
+        
+        /* Update cluster markers for anything changed since last flush */
+        void flushClusters() {
+            if(clusters != null)
+                apicalls += clusters.flush();
+        }
+        
+        /* Check if players joining or leaving change what the layer shows */
+        boolean isPlayerFiltered() {
+            return online_only || (maxinactive > 0);
+        }
+        
+        /* Check if layer uses when players were last seen */
+        boolean needsLastSeen() {
+            return (maxinactive > 0) || ((maxmarkers > 0) && (caprank == MarkerCap.RANK_SEEN));
+        }
+        
+        /* Start snapshot of world */
+        private SnapshotBuilder newSnapshot(String wname, WorldSnapshot snap, MarkerDiff diff, boolean newlabels) {
+            SnapshotBuilder sb = new SnapshotBuilder(wname, snap, diff, labelfmt, rules.forWorld(wname), online_only ? onlineplayers : null, newlabels);
+            LastSeenIndex idx = lastseen;
+            if((maxinactive > 0) && (idx != null))
+                sb.setSeenSince(idx, System.currentTimeMillis() - maxinactive);
+            return sb;
+        }
+        
+        /* Create marker, or update existing one - returns null if marker could not be created */
+        private MarkerState applyMarker(MarkerState ms, MarkerRecord r) {
+            boolean moved = false;
+            if((ms != null) && (sameSet(ms.world, ms.x, ms.z, r.world, r.x, r.z) == false)) {  /* Moved to another shard */
+                removeMarker(ms);
+                ms = null;
+                moved = true;
+            }
+            if(ms == null) { /* Not found?  Need new one */
+                MarkerSet set = getSet(r.world, r.x, r.z);
+                if(set == null) return null;
+                Marker m = set.createMarker(r.id, r.label, r.world, r.x, r.y, r.z, deficon, persistent);
+                apicalls++;
+                if(m == null) return null;
+                ms = new MarkerState(m, r.world, r.x, r.y, r.z, r.label, deficon);
+                String sid = set.getMarkerSetID();
+                setcounts.put(sid, setcounts.get(sid) + 1);
+                if(clusters != null)
+                    clusters.add(r.world, r.x, r.y, r.z);
+                if(moved)
+                    updated++;
+                else
+                    created++;
+                recordChange(moved ? MarkerChange.Type.MOVED : MarkerChange.Type.CREATED, r.id, ms);
+            }
+            else {
+                String ow = ms.world, olabel = ms.label;
+                double ox = ms.x, oy = ms.y, oz = ms.z;
+                int calls = ms.update(r.world, r.x, r.y, r.z, r.label, deficon);
+                if(calls > 0) {
+                    apicalls += calls;
+                    boolean locchanged = (ox != ms.x) || (oy != ms.y) || (oz != ms.z) || (ow.equals(ms.world) == false);
+                    if((clusters != null) && locchanged) {
+                        clusters.remove(ow, ox, oy, oz);
+                        clusters.add(ms.world, ms.x, ms.y, ms.z);
+                    }
+                    if(locchanged)
+                        recordChange(MarkerChange.Type.MOVED, r.id, ms);
+                    else if(ms.label != olabel)
+                        recordChange(MarkerChange.Type.RELABELED, r.id, ms);
+                    updated++;
+                }
+                else {
+                    unchanged++;
+                }
+            }
+            return ms;
+        }
+        
+        /* Delete marker, if we have one */
+        private void deleteMarker(String id) {
+            MarkerState ms = markers.remove(id);
+            if(ms != null) {
+                dropID(id);
+                removeMarker(ms);
+                deleted++;
+                recordChange(MarkerChange.Type.DELETED, id, ms);
+            }
+        }
+        
+        /* Add change to the change feed, if enabled */
+        private void recordChange(MarkerChange.Type type, String mid, MarkerState ms) {
+            ChangeFeed feed = changefeed;
+            if(feed != null)
+                feed.record(type, id, mid, ms.world, ms.x, ms.y, ms.z, ms.label);
+        }
+        
+        /* Remove marker from the map, and its shard if that is now empty */
+        private void removeMarker(MarkerState ms) {
+            MarkerSet set = ms.marker.getMarkerSet();
+            ms.marker.deleteMarker();
+            apicalls++;
+            if(clusters != null)
+                clusters.remove(ms.world, ms.x, ms.y, ms.z);
+            String sid = set.getMarkerSetID();
+            Integer cnt = setcounts.get(sid);
+            if(cnt != null) {
+                if((cnt <= 1) && (shardmode != SHARD_NONE)) {
+                    set.deleteMarkerSet();
+                    apicalls++;
+                    sets.remove(sid);
+                    setcounts.remove(sid);
+                }
+                else {
+                    setcounts.put(sid, cnt - 1);
+                }
+            }
+        }
+        
+        /* Read world's locations from CommandBook's file - null if it can't be read, so CommandBook must be asked */
+        private LocationFileReader.Rows readFile(String wname, boolean perworld) {
+            LocationFileReader rdr = filereader;
+            if(rdr == null)
+                return null;
+            try {
+                return rdr.read(wname, perworld);
+            } catch (IOException iox) {
+                severe("Error reading CommandBook " + id + " file - " + iox.getMessage());
+                return null;
+            }
+        }
+        
+        /* Async - snapshot the visible locations and compare with the last snapshot.  If files are
+         * watched, only worlds whose files changed are read again.  Returns null if CommandBook changed
+         * the locations while we were reading them - we'll try again next time. */
+        MarkerDiff buildUpdate(RootLocationManager<NamedLocation> mgr, List<World> worlds, Map<String, double[]> spawns) {
+            Set<String> scan = null;    /* Worlds to scan - null for all */
+            boolean newlabels = relabel.getAndSet(false);
+            boolean full = fullscan.getAndSet(false);
+            boolean all = full || newlabels;
+            StorageWatcher sw = watcher;
+            if(sw != null) {
+                List<String> wnames = new ArrayList<String>();
+                for(World w : worlds)
+                    wnames.add(w.getName());
+                scan = sw.getChangedWorlds(wnames, mgr.isPerWorld());
+            }
+            /* Players become inactive without any file changing - so read everything now and then */
+            if((maxinactive > 0) && (System.currentTimeMillis() - lastfullscan > INACTIVE_RESCAN))
+                all = true;
+            if(all)
+                scan = null;
+            long start = System.nanoTime();
+            MarkerCap mc = setupCap(spawns);
+            int rejected = 0;
+            MarkerDiff diff = new MarkerDiff();
+            SnapshotBuilder[] scanned = new SnapshotBuilder[worlds.size()];
+            boolean ok = false;
+            try {
+                /* For each world */
+                for(int i = 0; i < worlds.size(); i++) {
+                    World w = worlds.get(i);
+                    String wname = w.getName();
+                    if((scan != null) && (scan.contains(wname) == false))
+                        continue;
+                    WorldSnapshot snap = lastsnap.get(wname);
+                    if(snap == null) {
+                        snap = new WorldSnapshot(wname);
+                        lastsnap.put(wname, snap);
+                    }
+                    SnapshotBuilder sb = newSnapshot(wname, snap, diff, newlabels);
+                    LocationFileReader.Rows rows = null;
+                    if((filereader != null) && (sb.isAllHidden() == false))
+                        rows = readFile(wname, mgr.isPerWorld());
+                    if(rows != null) {  /* Read straight from CommandBook's file */
+                        for(int j = 0; j < rows.count; j++) {
+                            if(rows.worlds[j].equals(wname))
+                                sb.add(rows.names[j], rows.xs[j], rows.ys[j], rows.zs[j]);
+                        }
+                    }
+                    List<NamedLocation> loclist = (sb.isAllHidden() || (rows != null)) ? null : mgr.getLocations(w);  /* Get locations in this world */
+                    if(loclist != null) {
+                        for(NamedLocation nl : loclist) {
+                            /* Get location */
+                            Location loc = nl.getLocation();
+                            /* If not world specific list, we may get locations for other worlds - skip them */
+                            if(loc.getWorld() != w)
+                                continue;
+                            sb.add(nl.getName(), loc.getX(), loc.getY(), loc.getZ());
+                        }
+                    }
+                    sb.finish();
+                    rejected += sb.rejected;
+                    scanned[i] = sb;
+                }
+                ok = true;
+            } catch (ConcurrentModificationException cmx) {
+                return null;    /* Snapshots only change below, so are still as last applied */
+            } finally {
+                if(!ok) {   /* Scan again next time, as it would have been */
+                    if(newlabels) relabel.set(true);
+                    if(full) fullscan.set(true);
+                }
+            }
+            /* Scan complete - store changes, and find deleted locations */
+            long dstart = System.nanoTime();
+            for(SnapshotBuilder sb : scanned) {
+                if(sb != null)
+                    sb.commit();
+            }
+            if(sw != null)  /* Files read - only now are they up to date */
+                sw.commit();
+            /* Anything on worlds no longer loaded is gone */
+            if(scan == null) {
+                for(Iterator<WorldSnapshot> iter = lastsnap.values().iterator(); iter.hasNext(); ) {
+                    WorldSnapshot snap = iter.next();
+                    boolean found = false;
+                    for(World w : worlds) {
+                        if(w.getName().equals(snap.world)) { found = true; break; }
+                    }
+                    if(!found) {
+                        snap.getAll(diff.deletes);
+                        iter.remove();
+                    }
+                }
+            }
+            /* Count worlds we didn't need to read again */
+            else {
+                for(WorldSnapshot snap : lastsnap.values()) {
+                    if(scan.contains(snap.world) == false)
+                        diff.unchanged += snap.size();
+                }
+            }
+            if(mc != null)
+                diff = applyCap(mc, diff);
+            long diffnanos = System.nanoTime() - dstart;
+            if(scan == null)
+                lastfullscan = System.currentTimeMillis();
+            stats.recordScan(System.nanoTime() - start - diffnanos, diffnanos, rejected);
+            return diff;
+        }
+        
+        /* Async - get limit ready for this update.  Made from the last snapshot when a limit is first set,
+         * as then every location has a marker - and kept, without a limit, for one more update when the
+         * limit is removed, so the hidden locations get their markers */
+        private MarkerCap setupCap(Map<String, double[]> spawns) {
+            int max = maxmarkers;
+            MarkerCap mc = cap;
+            if((mc == null) && (max <= 0))
+                return null;
+            boolean load = (mc == null);
+            if(load)
+                mc = cap = new MarkerCap();
+            mc.setInputs(System.currentTimeMillis(), spawns, onlineplayers, lastseen);
+            mc.configure((max > 0) ? max : Integer.MAX_VALUE, caprank);
+            if(load) {
+                List<MarkerRecord> all = new ArrayList<MarkerRecord>();
+                for(WorldSnapshot snap : lastsnap.values())
+                    snap.getAll(all);
+                mc.load(all);
+            }
+            for(Iterator<String> iter = reranked.iterator(); iter.hasNext(); ) {
+                String name = iter.next();
+                iter.remove();
+                for(String wname : lastsnap.keySet())
+                    mc.rescore(wname + "/" + name);
+            }
+            return mc;
+        }
+        
+        /* Async - turn changes to visible locations into changes to the markers within the limit */
+        private MarkerDiff applyCap(MarkerCap mc, MarkerDiff diff) {
+            for(MarkerRecord r : diff.deletes)
+                mc.remove(r.id);
+            for(MarkerRecord r : diff.updates)
+                mc.update(r);
+            for(MarkerRecord r : diff.creates)
+                mc.add(r);
+            MarkerDiff out = new MarkerDiff();
+            mc.emit(out);
+            if(maxmarkers > 0) {
+                capped = mc.getHidden();
+            }
+            else {  /* Limit removed - everything is shown now */
+                cap = null;
+                capped = 0;
+            }
+            return out;
+        }
+        
+        /* Start applying results of buildUpdate() */
+        void startApply(MarkerDiff diff) {
+            created = updated = deleted = 0;
+            unchanged = diff.unchanged;
+            cycleapicalls = 0;
+            applynanos = 0;
+        }
+        
+        /* Apply one phase of buildUpdate() results - only changed markers are touched.  Stops once
+         * maxops have been applied, or System.nanoTime() passes deadline.  Returns number applied. */
+        int applyPhase(MarkerDiff diff, int phase, long deadline, int maxops) {
+            List<MarkerRecord> recs = diff.getPhase(phase);
+            long start = System.nanoTime();
+            long calls = apicalls;
+            int cnt = 0;
+            while((diff.next[phase] < recs.size()) && (cnt < maxops)) {
+                if((cnt > 0) && (System.nanoTime() > deadline))
+                    break;
+                MarkerRecord r = recs.get(diff.next[phase]++);
+                cnt++;
+                if(touched.contains(r.id))
+                    continue;
+                if(phase == MarkerDiff.DELETE)
+                    deleteMarker(r.id);
+                else
+                    applyRecord(r);
+            }
+            cycleapicalls += apicalls - calls;
+            applynanos += System.nanoTime() - start;
+            return cnt;
+        }
+        
+        /* Update cluster markers, as part of update pass */
+        void flushApply() {
+            long start = System.nanoTime();
+            long calls = apicalls;
+            flushClusters();
+            cycleapicalls += apicalls - calls;
+            applynanos += System.nanoTime() - start;
+        }
+        
+        /* All results of buildUpdate() applied */
+        void finishApply() {
+            stats.recordApply(applynanos, created, updated, deleted, unchanged, cycleapicalls, markers.size());
+            if(logsummary) {
+                info(setlabel + ": " + created + " created, " + updated + " updated, " + deleted + " deleted, " + unchanged + " unchanged");
+            }
+        }
+        
+        private void applyRecord(MarkerRecord r) {
+            MarkerState ms = applyMarker(markers.remove(r.id), r);
+            if(ms != null) {
+                markers.put(r.id, ms);
+                markerids.put(r.id, r.id);
+            }
+            else {
+                dropID(r.id);
+            }
+        }
+        
+        private void dropID(String id) {
+            if(id.equals(markerids.get(id)))
+                markerids.remove(id);
+        }
+        
+        /* Create, move or delete the markers for a single location name, without rescanning the others */
+        void updateMarker(RootLocationManager<NamedLocation> mgr, String name) {
+            if(maxmarkers > 0) {    /* Only an update can keep the limit - so have one now */
+                if(online_only)     /* Online players change without files changing */
+                    fullscan.set(true);
+                if(nextupdate > 0)
+                    nextupdate = 0;
+                return;
+            }
+            long start = System.nanoTime();
+            long calls = apicalls;
+            for(World w : getServer().getWorlds()) {
+                String wname = w.getName();
+                NamedLocation nl = mgr.get(w, name);
+                Location loc = null;
+                String lname = name;
+                if(nl != null) {
+                    loc = nl.getLocation();
+                    lname = nl.getName();    /* Use stored name, so case matches marker ID */
+                    /* If not world specific manager, location may be in another world */
+                    if((loc == null) || (loc.getWorld() != w) || (newSnapshot(wname, null, null, false).isShown(lname) == false))
+                        loc = null;
+                }
+                String id = findMarkerID(wname, lname);
+                touched.add(id);
+                if(loc != null)
+                    applyRecord(SnapshotBuilder.makeRecord(null, labelfmt, id, wname, lname, loc.getX(), loc.getY(), loc.getZ()));
+                else
+                    deleteMarker(id);
+            }
+            flushClusters();
+            stats.recordEvent(System.nanoTime() - start, apicalls - calls);
+        }
+        
+        /* Set marker for spawn point of world - or remove it, if world is unloaded (loc is null) or hidden */
+        void updateSpawn(World w, Location loc) {
+            long start = System.nanoTime();
+            long calls = apicalls;
+            String wname = w.getName();
+            String id = wname + "/spawn";
+            if((loc != null) && newSnapshot(wname, null, null, false).isShown(wname))
+                applyRecord(SnapshotBuilder.makeRecord(null, labelfmt, id, wname, wname, loc.getX(), loc.getY(), loc.getZ()));
+            else
+                deleteMarker(id);
+            flushClusters();
+            stats.recordEvent(System.nanoTime() - start, apicalls - calls);
+        }
+        
+        /* Find ID of existing marker for name - CommandBook names are not case sensitive */
+        private String findMarkerID(String wname, String name) {
+            String id = wname + "/" + name;
+            if(markers.containsKey(id) == false) {
+                String mid = markerids.get(id);
+                if(mid != null)
+                    return mid;
+            }
+            return id;
+        }
+    }
+    
+    /* How often layers hiding inactive players read all locations again (milliseconds) */
+    static final long INACTIVE_RESCAN = 3600 * 1000;
+    
+    /* Layer sharding modes */
+    static final int SHARD_NONE = 0;
+    static final int SHARD_WORLD = 1;
+    static final int SHARD_REGION = 2;
+    
+    private static int getShardMode(FileConfiguration cfg, String id) {
+        String mode = cfg.getString("layer."+id+".shard", "none");
+        if(mode.equalsIgnoreCase("world"))
+            return SHARD_WORLD;
+        if(mode.equalsIgnoreCase("region"))
+            return SHARD_REGION;
+        return SHARD_NONE;
+    }
+    
+    private static int getShardSize(FileConfiguration cfg, String id) {
+        return Math.max(16, cfg.getInt("layer."+id+".shard-size", 2048));
+    }
+    
+    /* Scheduler for layer's periodic updates - layer.<id>.update.period, else update.period.  An existing
+     * scheduler is reconfigured rather than replaced, so a reload does not lose what it has adapted to */
+    private static UpdateScheduler getScheduler(FileConfiguration cfg, String id, UpdateScheduler sched) {
+        double per = cfg.getDouble("layer."+id+".update.period", cfg.getDouble("update.period", 5.0));
+        if(per < 2.0) per = 2.0;
+        long ticks = (long)(per*20.0);
+        if(cfg.getBoolean("update.adaptive.enable", true)) {
+            /* Never longer than a period set shorter than the default minimum */
+            double minper = Math.max(2.0, cfg.getDouble("update.adaptive.min-period", Math.min(15.0, per)));
+            if(minper > per)
+                info(id + " update period of " + per + "s is below update.adaptive.min-period - using " + minper + "s");
+            double maxper = Math.max(minper, cfg.getDouble("update.adaptive.max-period", 1800.0));
+            return getScheduler(sched, ticks, (long)(minper*20.0), (long)(maxper*20.0), cfg.getDouble("update.adaptive.low-tps", 18.0));
+        }
+        return getScheduler(sched, ticks, ticks, ticks, 0.0);
+    }
+    
+    private static UpdateScheduler getScheduler(UpdateScheduler sched, long ticks, long minticks, long maxticks, double lowtps) {
+        if(sched == null)
+            return new UpdateScheduler(ticks, minticks, maxticks, lowtps);
+        sched.configure(ticks, minticks, maxticks, lowtps);
+        return sched;
+    }
+    
+    /* Last values applied to a marker - lets us skip Marker API calls that would not change anything */
+    private static class MarkerState {
+        final Marker marker;
+        String world;
+        double x, y, z;
+        String label;
+        MarkerIcon icon;
+        
+        MarkerState(Marker marker, String world, double x, double y, double z, String label, MarkerIcon icon) {
+            this.marker = marker;
+            this.world = world;
+            this.x = x; this.y = y; this.z = z;
+            this.label = label;
+            this.icon = icon;
+        }
+        
+        /* Apply only the fields that changed - return number of marker API calls made */
+        int update(String world, double x, double y, double z, String label, MarkerIcon icon) {
+            int calls = 0;
+            if((x != this.x) || (y != this.y) || (z != this.z) || (world.equals(this.world) == false)) {
+                marker.setLocation(world, x, y, z);
+                this.world = world;
+                this.x = x; this.y = y; this.z = z;
+                calls++;
+            }
+            if(label.equals(this.label) == false) {
+                marker.setLabel(label);
+                this.label = label;
+                calls++;
+            }
+            if(icon != this.icon) {
+                marker.setMarkerIcon(icon);
+                this.icon = icon;
+                calls++;
+            }
+            return calls;
         }
     }
     
     /* Homes layer settings */
-    private Layer homelayer;
+    Layer homelayer;
     
     /* Warps layer settings */
-    private Layer warplayer;
+    Layer warplayer;
+    
+    /* Spawns layer settings - only updated by world events, never by the periodic update */
+    private Layer spawnlayer;
+    
+    /* Names of online players - kept current by join/quit events, matched without regard to case.
+     * Also read by the async update stage, so must be a concurrent set */
+    Set<String> onlineplayers = new ConcurrentSkipListSet<String>(String.CASE_INSENSITIVE_ORDER);
+    
+    /* When players were last seen - only loaded if a layer hides inactive players */
+    volatile LastSeenIndex lastseen;
     
-    long updperiod;
+    /* Limits on marker changes applied per tick */
+    long tickbudgetns;
+    int tickbudgetops;
+    boolean logsummary;
     boolean stop;
+    /* Recent marker changes, published as a service - null if disabled */
+    volatile ChangeFeed changefeed;
     
     public static void info(String msg) {
         log.log(Level.INFO, msg);
@@ -199,22 +1140,262 @@ public class DynmapCommandBookPlugin extends JavaPlugin {
         log.log(Level.SEVERE, msg);
     }
 
-    private class MarkerUpdate implements Runnable {
+    /* The one update task - runs every tick while active.  Starts an update of a layer when its period
+     * is up or one has been requested, and applies its results a tick's budget at a time.  Only one
+     * update is ever in progress, and it covers one layer - so layers never rescan together, and
+     * requests made meanwhile are merged into the next ones. */
+    class UpdateTask implements Runnable {
+        BukkitTask task;
+        long tick;
+        /* Tick when first periodic updates are due */
+        long firstupdate;
+        /* Sources of requested updates, merged into one */
+        Set<String> requests = new LinkedHashSet<String>();
+        boolean scanning;
+        /* Results of async stage, handed over to the server thread */
+        volatile ApplyUpdate ready;
+        ApplyUpdate applying;
+        int completed;
+        
+        UpdateTask(long delay) {
+            firstupdate = delay;
+        }
+        
+        public void run() {
+            tick++;
+            Layer[] layers = { homelayer, warplayer };
+            for(Layer l : layers) {
+                if(l == null) continue;
+                if(l.nextupdate < 0)
+                    l.nextupdate = Math.max(tick, firstupdate);
+                else if(l.nextupdate == tick)   /* Due now - measure TPS, even if it has to wait for another update */
+                    l.scheduler.started();
+            }
+            if(applying == null)    /* Changes made by events since last tick */
+                publishChanges();
+            if((applying == null) && (ready != null)) {
+                applying = ready;
+                ready = null;
+                scanning = false;
+            }
+            if(applying != null) {
+                if(applying.step() == false)   /* Out of budget - continue next tick */
+                    return;
+                if((applying.homes != null) && (applying.homes == homelayer))
+                    reschedule(applying.homes, applying.changed, applying.aborted, layers);
+                if((applying.warps != null) && (applying.warps == warplayer))
+                    reschedule(applying.warps, applying.changed, applying.aborted, layers);
+                applying = null;
+                completed++;
+                publishChanges();
+                return;
+            }
+            if(scanning)
+                return;
+            if(!requests.isEmpty()) {   /* Requested - every layer is due */
+                for(Layer l : layers) {
+                    if((l != null) && (l.nextupdate > tick))
+                        l.nextupdate = tick;
+                }
+                requests.clear();
+            }
+            /* Update the most overdue layer - any other due layer goes next */
+            Layer due = null;
+            for(Layer l : layers) {
+                if((l != null) && (l.nextupdate <= tick) && ((due == null) || (l.nextupdate < due.nextupdate)))
+                    due = l;
+            }
+            if(due != null)
+                startUpdate(due);
+        }
+        
+        /* Schedule layer's next update - kept at least half a period away from the other layer's, so
+         * big layers don't rescan back to back.  An update that could not finish is retried soon,
+         * without changing the period */
+        private void reschedule(Layer l, boolean changed, boolean aborted, Layer[] layers) {
+            if(aborted) {
+                l.nextupdate = tick + l.scheduler.retryPeriod();
+                l.scheduler.scheduled(l.nextupdate - tick);
+                return;
+            }
+            long delay = l.scheduler.nextPeriod(changed);
+            long next = tick + delay;
+            for(Layer o : layers) {
+                if((o == null) || (o == l) || (o.nextupdate < 0))
+                    continue;
+                long gap = Math.min(delay, o.scheduler.getPeriod()) / 2;
+                if(Math.abs(next - o.nextupdate) < gap)
+                    next = o.nextupdate + gap;
+            }
+            l.nextupdate = next;
+            l.scheduler.scheduled(next - tick);
+        }
+        
+        /* Fire event for changes recorded since last fired - if anything is listening */
+        private void publishChanges() {
+            ChangeFeed feed = changefeed;
+            if(feed == null)
+                return;
+            if(MarkerChangeEvent.getHandlerList().getRegisteredListeners().length == 0) {
+                feed.clearBatch();
+                return;
+            }
+            List<MarkerChange> batch = feed.takeBatch();
+            if(batch != null)
+                getServer().getPluginManager().callEvent(new MarkerChangeEvent(batch));
+        }
+        
+        /* Start update of layer - the snapshot and compare is done off the server thread by SnapshotUpdate */
+        private void startUpdate(Layer layer) {
+            layer.touched.clear();
+            scanning = true;
+            List<World> worlds = new ArrayList<World>(getServer().getWorlds());
+            /* CommandBook makes per-world managers the first time they are used, without locking - so
+             * make sure they all exist before they are read off the server thread */
+            RootLocationManager<NamedLocation> mgr = (layer == homelayer) ? homesmgr : warpsmgr;
+            if((mgr != null) && mgr.isPerWorld()) {
+                for(World w : worlds)
+                    mgr.getLocations(w);
+            }
+            getServer().getScheduler().runTaskAsynchronously(DynmapCommandBookPlugin.this,
+                new SnapshotUpdate(this, worlds, (layer == homelayer) ? layer : null, (layer == warplayer) ? layer : null));
+        }
+        
+        String getState() {
+            if(applying != null)
+                return "applying changes";
+            if(scanning)
+                return "reading locations";
+            return "idle";
+        }
+        
+        void cancel() {
+            task.cancel();
+            ready = null;
+            applying = null;
+        }
+    }
+    
+    /* Describe update task, listeners and scheduled tasks - for /dmcb status */
+    private List<String> getStatus() {
+        List<String> out = new ArrayList<String>();
+        UpdateTask ut = updatetask;
+        if(ut == null) {
+            out.add("Update task: not running");
+        }
+        else {
+            out.add("Update task #" + ut.task.getTaskId() + ": " + ut.getState() + ", " + ut.completed + " updates completed");
+            if(ut.requests.isEmpty() == false)
+                out.add("  Next update pending, requested by: " + ut.requests);
+            for(Layer l : new Layer[] { homelayer, warplayer }) {
+                if((l != null) && (l.nextupdate >= 0))
+                    out.add(String.format("  Next %s update in %.1fs", l.id, Math.max(0, l.nextupdate - ut.tick) / 20.0));
+            }
+        }
+        out.add("Config watch: " + ((configwatch != null) ? ("task #" + configwatch.getTaskId()) : "off"));
+        out.add("Listeners: player " + ((playerlistener != null) ? "registered" : "not needed") +
+            ", command hooks " + ((commandlistener != null) ? (commandhooks ? "registered" : "registered, disabled") : "off"));
+        int sync = 0, async = 0;
+        for(BukkitTask t : getServer().getScheduler().getPendingTasks()) {
+            if(t.getOwner() != this) continue;
+            if(t.isSync()) sync++; else async++;
+        }
+        out.add("Scheduled tasks: " + sync + " sync, " + async + " async");
+        return out;
+    }
+    
+    /* Ask for an update as soon as the current one, if any, is done */
+    void requestUpdate(String source) {
+        if(updatetask != null)
+            updatetask.requests.add(source);
+    }
+    
+    /* Async stage of update - find what changed in each layer, then hand the results to ApplyUpdate */
+    private class SnapshotUpdate implements Runnable {
+        final UpdateTask owner;
+        final List<World> worlds;
+        final Layer homes;
+        final Layer warps;
+        final RootLocationManager<NamedLocation> homemgr = homesmgr;
+        final RootLocationManager<NamedLocation> warpmgr = warpsmgr;
+        /* World spawn x and z, by world - read on the server thread, for layers ranked by distance to spawn */
+        final Map<String, double[]> spawns = new HashMap<String, double[]>();
+        
+        /* Layers not being updated are null */
+        SnapshotUpdate(UpdateTask owner, List<World> worlds, Layer homes, Layer warps) {
+            this.owner = owner;
+            this.worlds = worlds;
+            this.homes = homes;
+            this.warps = warps;
+            for(World w : worlds) {
+                Location loc = getSpawn(w);
+                spawns.put(w.getName(), new double[] { loc.getX(), loc.getZ() });
+            }
+        }
+        
         public void run() {
-            if(!stop)
-                updateMarkers();
+            MarkerDiff homediff = null, warpdiff = null;
+            try {
+                saveLastSeen();
+                if((homes != null) && (homemgr != null))
+                    homediff = homes.buildUpdate(homemgr, worlds, spawns);
+                if((warps != null) && (warpmgr != null))
+                    warpdiff = warps.buildUpdate(warpmgr, worlds, spawns);
+            } finally {    /* Always hand back - owner waits for it */
+                owner.ready = new ApplyUpdate(homes, homediff, warps, warpdiff);
+            }
         }
     }
     
-    /* Update mob population and position */
-    private void updateMarkers() {
-        if(homesmgr != null) {
-            homelayer.updateMarkerSet(homesmgr);
+    /* Sync stage of update - apply changes through the marker API, a tick's budget at a time: deletes
+     * first, then moves, then creates. */
+    private class ApplyUpdate {
+        final Layer homes, warps;
+        final MarkerDiff homediff, warpdiff;
+        boolean started;
+        /* Set once done, if any markers changed */
+        boolean changed;
+        /* Set if a layer's scan did not finish - files changed while read */
+        final boolean aborted;
+        
+        ApplyUpdate(Layer homes, MarkerDiff homediff, Layer warps, MarkerDiff warpdiff) {
+            this.homes = homes; this.homediff = homediff;
+            this.warps = warps; this.warpdiff = warpdiff;
+            aborted = ((homes != null) && (homediff == null)) || ((warps != null) && (warpdiff == null));
         }
-        if(warpsmgr != null) {
-            warplayer.updateMarkerSet(warpsmgr);
+        
+        /* Apply a tick's worth of changes - returns true once all are applied */
+        boolean step() {
+            /* Skip layers that have been replaced since the update started */
+            boolean dohomes = (homediff != null) && (homes == homelayer);
+            boolean dowarps = (warpdiff != null) && (warps == warplayer);
+            if(!started) {
+                if(dohomes) homes.startApply(homediff);
+                if(dowarps) warps.startApply(warpdiff);
+                started = true;
+            }
+            long deadline = System.nanoTime() + tickbudgetns;
+            int ops = tickbudgetops;
+            for(int phase = 0; phase < MarkerDiff.PHASES; phase++) {
+                if(dohomes && (ops > 0))
+                    ops -= homes.applyPhase(homediff, phase, deadline, ops);
+                if(dowarps && (ops > 0))
+                    ops -= warps.applyPhase(warpdiff, phase, deadline, ops);
+            }
+            if(dohomes) homes.flushApply();
+            if(dowarps) warps.flushApply();
+            if(dohomes && !homediff.isDone()) return false;
+            if(dowarps && !warpdiff.isDone()) return false;
+            if(dohomes) {
+                homes.finishApply();
+                changed |= (homes.created + homes.updated + homes.deleted) > 0;
+            }
+            if(dowarps) {
+                warps.finishApply();
+                changed |= (warps.created + warps.updated + warps.deleted) > 0;
+            }
+            return true;
         }
-        getServer().getScheduler().scheduleSyncDelayedTask(this, new MarkerUpdate(), updperiod);
     }
 
     private class OurServerListener implements Listener {
@@ -230,6 +1411,93 @@ public class DynmapCommandBookPlugin extends JavaPlugin {
         }
     }
     
+    /* Keeps spawns layer current - spawns rarely change, so there is nothing to poll */
+    private class OurWorldListener implements Listener {
+        @SuppressWarnings("unused")
+        @EventHandler(priority=EventPriority.MONITOR)
+        public void onWorldLoad(WorldLoadEvent event) {
+            if((!stop) && (spawnlayer != null))
+                spawnlayer.updateSpawn(event.getWorld(), getSpawn(event.getWorld()));
+            requestUpdate("world load");
+        }
+        @SuppressWarnings("unused")
+        @EventHandler(priority=EventPriority.MONITOR, ignoreCancelled=true)
+        public void onWorldUnload(WorldUnloadEvent event) {
+            if((!stop) && (spawnlayer != null))
+                spawnlayer.updateSpawn(event.getWorld(), null);
+            requestUpdate("world unload");
+        }
+        @SuppressWarnings("unused")
+        @EventHandler(priority=EventPriority.MONITOR)
+        public void onSpawnChange(SpawnChangeEvent event) {
+            final World w = event.getWorld();
+            /* CommandBook may store its own copy after the world's - so read it on next tick */
+            getServer().getScheduler().scheduleSyncDelayedTask(DynmapCommandBookPlugin.this, new Runnable() {
+                public void run() {
+                    if((!stop) && (spawnlayer != null) && (getServer().getWorld(w.getName()) == w))
+                        spawnlayer.updateSpawn(w, getSpawn(w));
+                }
+            }, 1);
+        }
+    }
+    
+    /* Spawn point of world - CommandBook's, if it has one (keeps pitch and yaw), else the world's own */
+    private Location getSpawn(World w) {
+        if(spawnmgr != null) {
+            Location loc = spawnmgr.getWorldSpawn(w);
+            if(loc != null)
+                return loc;
+        }
+        return w.getSpawnLocation();
+    }
+    
+    /* Update all spawn markers - only markers that differ cost marker API calls */
+    private void updateSpawns() {
+        Set<String> ids = new HashSet<String>(spawnlayer.markers.keySet());
+        for(World w : getServer().getWorlds()) {
+            ids.remove(w.getName() + "/spawn");
+            spawnlayer.updateSpawn(w, getSpawn(w));
+        }
+        for(String id : ids) {  /* Worlds no longer loaded */
+            spawnlayer.deleteMarker(id);
+        }
+    }
+    
+    @Override
+    public boolean onCommand(CommandSender sender, Command cmd, String label, String[] args) {
+        if((args.length > 0) && args[0].equalsIgnoreCase("stats")) {
+            if(sender.hasPermission("dynmapcommandbook.stats") == false) {
+                sender.sendMessage("You do not have permission to use this command");
+                return true;
+            }
+            if((homelayer == null) && (warplayer == null) && (spawnlayer == null)) {
+                sender.sendMessage("Dynmap-CommandBook is not active");
+            }
+            for(Layer layer : new Layer[] { homelayer, warplayer, spawnlayer }) {
+                if(layer == null) continue;
+                for(String line : layer.stats.format())
+                    sender.sendMessage(line);
+            }
+            for(Layer layer : new Layer[] { homelayer, warplayer }) {
+                if(layer == null) continue;
+                sender.sendMessage(String.format("%s update period: %.1fs, server TPS: %.1f", layer.setlabel, layer.scheduler.getPeriod() / 20.0, layer.scheduler.getTPS()));
+                if(layer.maxmarkers > 0)
+                    sender.sendMessage(layer.setlabel + ": " + layer.capped + " locations hidden by max-markers " + layer.maxmarkers);
+            }
+            return true;
+        }
+        if((args.length > 0) && args[0].equalsIgnoreCase("status")) {
+            if(sender.hasPermission("dynmapcommandbook.status") == false) {
+                sender.sendMessage("You do not have permission to use this command");
+                return true;
+            }
+            for(String line : getStatus())
+                sender.sendMessage(line);
+            return true;
+        }
+        return false;
+    }
+    
     public void onEnable() {
         info("initializing");
         PluginManager pm = getServer().getPluginManager();
@@ -249,6 +1517,7 @@ public class DynmapCommandBookPlugin extends JavaPlugin {
         commandbook = (CommandBook)p;
 
         getServer().getPluginManager().registerEvents(new OurServerListener(), this);        
+        getServer().getPluginManager().registerEvents(new OurWorldListener(), this);
 
         /* If both enabled, activate */
         if(dynmap.isEnabled() && commandbook.isEnabled())
@@ -261,6 +1530,14 @@ public class DynmapCommandBookPlugin extends JavaPlugin {
         }
     }
     private boolean reload = false;
+    /* Watches config.yml for changes */
+    private BukkitTask configwatch;
+    /* The update task, and listeners - only ever one of each, however often we are activated */
+    private UpdateTask updatetask;
+    private OurPlayerListener playerlistener;
+    private OurCommandListener commandlistener;
+    boolean commandhooks;
+    private long configmodified;
     
     private void activate() {
         /* Now, get markers API */
@@ -280,6 +1557,10 @@ public class DynmapCommandBookPlugin extends JavaPlugin {
             if(warps != null) {
                 warpsmgr = warps.getManager();
             }
+            SpawnLocationsComponent spawns = cm.getComponent(SpawnLocationsComponent.class);
+            if(spawns != null) {
+                spawnmgr = spawns.getSpawnManager();
+            }
         }
         /* If not found, signal disabled */
         if(homesmgr == null)
@@ -291,18 +1572,6 @@ public class DynmapCommandBookPlugin extends JavaPlugin {
         /* Load configuration */
         if(reload) {
             this.reloadConfig();
-            if(homelayer != null) {
-                if(homelayer.set != null) {
-                    homelayer.set.deleteMarkerSet();
-                }
-                homelayer = null;
-            }
-            if(warplayer != null) {
-                if(warplayer.set != null) {
-                    warplayer.set.deleteMarkerSet();
-                }
-                warplayer = null;
-            }
         }
         else {
             reload = true;
@@ -310,39 +1579,187 @@ public class DynmapCommandBookPlugin extends JavaPlugin {
         FileConfiguration cfg = getConfig();
         cfg.options().copyDefaults(true);   /* Load defaults, if needed */
         this.saveConfig();  /* Save updates, if needed */
+        configmodified = getConfigFile().lastModified();
         
-        /* Check which is enabled */
-        if(cfg.getBoolean("layer.homes.enable", true) == false)
-            homesmgr = null;
-        if(cfg.getBoolean("layer.warps.enable", true) == false)
-            warpsmgr = null;
+        /* Start with players already online */
+        onlineplayers.clear();
+        for(Player p : getServer().getOnlinePlayers())
+            onlineplayers.add(p.getName());
         
-        /* Now, add marker set for homes */
-        if(homesmgr != null)
-            homelayer = new Layer("homes", cfg, "Homes", "house", "%name%(home)");
-        /* Now, add marker set for warps */
-        if(warpsmgr != null)
-            warplayer = new Layer("warps", cfg, "Warps", "portal", "[%name%]");
+        applyConfig(cfg);
         
-        /* Set up update job - based on periond */
-        double per = cfg.getDouble("update.period", 5.0);
-        if(per < 2.0) per = 2.0;
-        updperiod = (long)(per*20.0);
         stop = false;
-        getServer().getScheduler().scheduleSyncDelayedTask(this, new MarkerUpdate(), 5*20);
-        
+        if(updatetask == null) {
+            updatetask = new UpdateTask(5*20);
+            updatetask.task = getServer().getScheduler().runTaskTimer(this, updatetask, 1, 1);
+        }
+        else {
+            requestUpdate("activate");
+        }
         info("version " + this.getDescription().getVersion() + " is activated");
     }
+    
+    private File getConfigFile() {
+        return new File(getDataFolder(), "config.yml");
+    }
+    
+    /* Reloads configuration when config.yml changes */
+    private class ConfigWatcher implements Runnable {
+        public void run() {
+            long mod = getConfigFile().lastModified();
+            if((mod == configmodified) || stop || (markerapi == null))
+                return;
+            configmodified = mod;
+            reloadConfig();
+            applyConfig(getConfig());
+            requestUpdate("config reload");
+            info("Configuration reloaded");
+        }
+    }
+    
+    /* Apply configuration - existing layers are updated in place, so only settings that changed touch the map */
+    void applyConfig(FileConfiguration cfg) {
+        /* Now, add marker set for homes */
+        homelayer = setupLayer(homelayer, (homesmgr != null) && cfg.getBoolean("layer.homes.enable", true), "homes", cfg, "Homes", "house", "%name%(home)");
+        /* Now, add marker set for warps */
+        warplayer = setupLayer(warplayer, (warpsmgr != null) && cfg.getBoolean("layer.warps.enable", true), "warps", cfg, "Warps", "portal", "[%name%]");
+        /* Now, add marker set for spawns - falls back to world spawns without CommandBook's spawn component */
+        spawnlayer = setupLayer(spawnlayer, cfg.getBoolean("layer.spawns.enable", false), "spawns", cfg, "Spawns", "world", "[%name% spawn]");
+        if(spawnlayer != null)
+            updateSpawns();
+        if((lastseen == null) && (((homelayer != null) && homelayer.needsLastSeen()) || ((warplayer != null) && warplayer.needsLastSeen())))
+            loadLastSeen();
+        
+        logsummary = cfg.getBoolean("update.log-summary", false);
+        double budget = cfg.getDouble("update.tick-budget-ms", 10.0);
+        if(budget < 1.0) budget = 1.0;
+        tickbudgetns = (long)(budget * 1000000.0);
+        tickbudgetops = cfg.getInt("update.tick-budget-ops", 0);
+        if(tickbudgetops <= 0) tickbudgetops = Integer.MAX_VALUE;
+        setupChangeFeed(cfg.getInt("update.change-feed.size", 4096));
+        commandhooks = cfg.getBoolean("update.command-hooks", true);
+        if(commandhooks && (commandlistener == null)) {
+            commandlistener = new OurCommandListener();
+            getServer().getPluginManager().registerEvents(commandlistener, this);
+        }
+        /* Watch config.yml - stopped if a reload turns auto-reload off */
+        if(cfg.getBoolean("update.auto-reload", true)) {
+            if(configwatch == null)
+                configwatch = getServer().getScheduler().runTaskTimer(this, new ConfigWatcher(), 100, 100);
+        }
+        else if(configwatch != null) {
+            configwatch.cancel();
+            configwatch = null;
+        }
+    }
+    
+    /* Create change feed service, or resize or remove it - sequence numbers carry on from the old feed */
+    private void setupChangeFeed(int size) {
+        ChangeFeed old = changefeed;
+        if((old != null) && (old.getCapacity() == size))
+            return;
+        if(old != null)
+            getServer().getServicesManager().unregister(old);
+        changefeed = null;
+        if(size > 0) {
+            ChangeFeed feed = new ChangeFeed(size, (old != null) ? old.getLatestSequence() : 0);
+            getServer().getServicesManager().register(MarkerChangeFeed.class, feed, this, ServicePriority.Normal);
+            changefeed = feed;
+        }
+    }
+    
+    /* Track players joining and leaving - registered once, when first needed */
+    private void registerPlayerListener() {
+        if(playerlistener == null) {
+            playerlistener = new OurPlayerListener();
+            getServer().getPluginManager().registerEvents(playerlistener, this);
+        }
+    }
+    
+    /* Load last seen index - built from player data, the first time */
+    private void loadLastSeen() {
+        LastSeenIndex idx = new LastSeenIndex(new File(getDataFolder(), "lastseen.csv"));
+        try {
+            if(idx.load() == false) {
+                idx.build(getServer().getOfflinePlayers());
+                info("Built last seen index of " + idx.size() + " players");
+            }
+        } catch (IOException iox) {
+            severe("Error reading last seen index - " + iox.getMessage());
+            idx.build(getServer().getOfflinePlayers());
+        }
+        long now = System.currentTimeMillis();
+        for(Player p : getServer().getOnlinePlayers())
+            idx.seen(p.getName(), now);
+        lastseen = idx;
+    }
+    
+    private void saveLastSeen() {
+        LastSeenIndex idx = lastseen;
+        if(idx != null) {
+            try {
+                idx.save();
+            } catch (IOException iox) {
+                severe("Error saving last seen index - " + iox.getMessage());
+            }
+        }
+    }
+    
+    /* Create layer, update existing one, or remove it if no longer enabled */
+    private Layer setupLayer(Layer layer, boolean enabled, String id, FileConfiguration cfg, String deflabel, String deficon, String deflabelfmt) {
+        if(!enabled) {
+            if(layer != null)
+                layer.cleanup(false);
+            return null;
+        }
+        /* If dynmap has been reloaded, our marker sets are gone - start again, adopting any it kept */
+        if((layer != null) && (layer.isValid() == false)) {
+            layer.cleanup(true);
+            layer = null;
+        }
+        /* Persistence and sharding can only be changed by making the marker sets again */
+        if((layer != null) && layer.needsRebuild(cfg)) {
+            layer.cleanup(false);
+            layer = null;
+        }
+        if(layer == null) {
+            layer = new Layer(id, cfg, deflabel, deficon, deflabelfmt);
+            if(layer.isValid() == false) {  /* Marker set could not be made - leave layer out until next reload */
+                layer.cleanup(false);
+                return null;
+            }
+            return layer;
+        }
+        layer.configure(cfg);
+        return layer;
+    }
 
     public void onDisable() {
+        if(configwatch != null) {
+            configwatch.cancel();
+            configwatch = null;
+        }
+        if(updatetask != null) {
+            updatetask.cancel();
+            updatetask = null;
+        }
         if(homelayer != null) {
-            homelayer.cleanup();
+            homelayer.cleanup(true);
             homelayer = null;
         }
         if(warplayer != null) {
-            warplayer.cleanup();
+            warplayer.cleanup(true);
             warplayer = null;
         }
+        if(spawnlayer != null) {
+            spawnlayer.cleanup(true);
+            spawnlayer = null;
+        }
+        saveLastSeen();
+        if(changefeed != null) {
+            getServer().getServicesManager().unregister(changefeed);
+            changefeed = null;
+        }
         stop = true;
     }
 
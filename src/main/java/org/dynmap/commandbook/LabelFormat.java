@@ -0,0 +1,103 @@
+package org.dynmap.commandbook;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Label format, parsed once into literal text and fields.  Supports %name%, %world%, and the
+ * block coordinates %x%, %y% and %z%.  Anything else is kept as literal text.
+ */
+class LabelFormat {
+    private static final String[] FIELDS = { "%name%", "%world%", "%x%", "%y%", "%z%" };
+    private static final int NAME = 0;
+    private static final int WORLD = 1;
+    private static final int X = 2;
+    private static final int Y = 3;
+    private static final int Z = 4;
+    
+    final String format;
+    /* literals[i] comes before fields[i] - last literal follows the last field */
+    private final String[] literals;
+    private final int[] fields;
+    private final int literallen;
+    private final boolean useworld;
+    private final boolean usecoords;
+    
+    LabelFormat(String format) {
+        this.format = format;
+        List<String> lits = new ArrayList<String>();
+        List<Integer> flds = new ArrayList<Integer>();
+        int start = 0;
+        int len = 0;
+        for(int i = 0; i < format.length(); i++) {
+            if(format.charAt(i) != '%') continue;
+            for(int f = 0; f < FIELDS.length; f++) {
+                if(format.startsWith(FIELDS[f], i)) {
+                    lits.add(format.substring(start, i));
+                    len += i - start;
+                    flds.add(f);
+                    i += FIELDS[f].length() - 1;
+                    start = i + 1;
+                    break;
+                }
+            }
+        }
+        lits.add(format.substring(start));
+        len += format.length() - start;
+        literals = lits.toArray(new String[lits.size()]);
+        fields = new int[flds.size()];
+        boolean w = false, c = false;
+        for(int i = 0; i < fields.length; i++) {
+            fields[i] = flds.get(i);
+            if(fields[i] == WORLD) w = true;
+            if(fields[i] >= X) c = true;
+        }
+        literallen = len;
+        useworld = w;
+        usecoords = c;
+    }
+    
+    /* Build label for location */
+    String format(String name, String world, double x, double y, double z) {
+        if((fields.length == 1) && (fields[0] == NAME) && (literallen == 0))  /* Just the name */
+            return name;
+        StringBuilder sb = new StringBuilder(literallen + 16 * fields.length);
+        for(int i = 0; i < fields.length; i++) {
+            sb.append(literals[i]);
+            switch(fields[i]) {
+                case NAME:
+                    sb.append(name);
+                    break;
+                case WORLD:
+                    sb.append(world);
+                    break;
+                case X:
+                    sb.append(blockCoord(x));
+                    break;
+                case Y:
+                    sb.append(blockCoord(y));
+                    break;
+                case Z:
+                    sb.append(blockCoord(z));
+                    break;
+            }
+        }
+        sb.append(literals[fields.length]);
+        return sb.toString();
+    }
+    
+    /* Check if label of old record, made with this format, is still right for the given values */
+    boolean isSameLabel(MarkerRecord old, String name, String world, double x, double y, double z) {
+        if(old.name.equals(name) == false)
+            return false;
+        if(useworld && (old.world.equals(world) == false))
+            return false;
+        if(usecoords && ((blockCoord(old.x) != blockCoord(x)) || (blockCoord(old.y) != blockCoord(y)) || (blockCoord(old.z) != blockCoord(z))))
+            return false;
+        return true;
+    }
+    
+    private static int blockCoord(double v) {
+        return (int)Math.floor(v);
+    }
+}
@@ -0,0 +1,106 @@
+package org.dynmap.commandbook;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import org.bukkit.OfflinePlayer;
+
+/**
+ * When each player was last seen, by name (not case sensitive).  Built once from the server's
+ * player data, then kept current by join and quit events and saved to its own file - so the update
+ * loop never reads player data files.  Read by the async update stage.
+ */
+class LastSeenIndex {
+    private final File file;
+    private final Map<String, Long> seen = new ConcurrentSkipListMap<String, Long>(String.CASE_INSENSITIVE_ORDER);
+    private volatile boolean dirty;
+
+    LastSeenIndex(File file) {
+        this.file = file;
+    }
+
+    /* Load saved index - returns false if there is none yet */
+    boolean load() throws IOException {
+        if(file.exists() == false)
+            return false;
+        BufferedReader rdr = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while((line = rdr.readLine()) != null) {
+                int idx = line.lastIndexOf(',');
+                if(idx <= 0) continue;
+                try {
+                    seen(line.substring(0, idx), Long.parseLong(line.substring(idx+1)));
+                } catch (NumberFormatException nfx) {
+                }
+            }
+        } finally {
+            rdr.close();
+        }
+        dirty = false;
+        return true;
+    }
+
+    /* Fill index from the server's player data - only needed the first time */
+    void build(OfflinePlayer[] players) {
+        for(OfflinePlayer p : players) {
+            if((p.getName() != null) && (p.getLastPlayed() > 0))
+                seen(p.getName(), p.getLastPlayed());
+        }
+    }
+
+    /* Record player seen at time - never moves backward */
+    void seen(String name, long when) {
+        Long old = seen.get(name);
+        if((old == null) || (old.longValue() < when)) {
+            seen.put(name, when);
+            dirty = true;
+        }
+    }
+
+    /* Time player was last seen - 0 if never */
+    long getLastSeen(String name) {
+        Long when = seen.get(name);
+        return (when == null) ? 0 : when.longValue();
+    }
+
+    int size() {
+        return seen.size();
+    }
+
+    /* Save index, if it changed since last saved - written to a new file, then renamed over the old one */
+    synchronized void save() throws IOException {
+        if(!dirty)
+            return;
+        dirty = false;
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            BufferedWriter w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+            try {
+                for(Map.Entry<String, Long> ent : seen.entrySet()) {
+                    w.write(ent.getKey());
+                    w.write(',');
+                    w.write(Long.toString(ent.getValue()));
+                    w.newLine();
+                }
+            } finally {
+                w.close();
+            }
+            if((file.delete() == false) && file.exists())
+                throw new IOException("Cannot replace " + file.getPath());
+            if(tmp.renameTo(file) == false)
+                throw new IOException("Cannot rename " + tmp.getPath());
+        } catch (IOException iox) {
+            dirty = true;   /* Try again next time */
+            throw iox;
+        }
+    }
+}
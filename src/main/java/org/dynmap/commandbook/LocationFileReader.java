@@ -0,0 +1,364 @@
+package org.dynmap.commandbook;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads CommandBook's flat file location storage (<type>.csv, or <type>/<world>.csv when stored per
+ * world) directly, instead of through its location manager - so a scan does not build a NamedLocation
+ * and Location for every home.  Rows are kept per file as primitive columns, with names and worlds
+ * reused from the last read where unchanged.  A file whose modification time and size are unchanged
+ * is not read again, and one that has only been appended to is only parsed from where the last read
+ * ended.  Large files are memory mapped - except on Windows, where CommandBook could not replace a
+ * file while it is mapped.  Rows are checked and names normalized the way CommandBook loads them,
+ * so both ways of reading give the same markers.  Only used by the async update stage.
+ */
+class LocationFileReader {
+    /* Files at least this big are memory mapped */
+    private static final long MAP_THRESHOLD = 1024 * 1024;
+    private static final boolean CAN_MAP = !System.getProperty("os.name", "").startsWith("Windows");
+    /* Columns: name, world, creator, x, y, z, pitch, yaw - CommandBook skips rows with fewer */
+    private static final int FIELDS = 8;
+    private static final double[] POW10 = new double[23];
+    static {
+        POW10[0] = 1.0;
+        for(int i = 1; i < POW10.length; i++)
+            POW10[i] = POW10[i-1] * 10.0;
+    }
+
+    /* Rows of one file, and where the last read of it got to */
+    static class Rows {
+        final File file;
+        int count;
+        String[] names = new String[16];
+        String[] worlds = new String[16];
+        double[] xs = new double[16], ys = new double[16], zs = new double[16];
+        long modified = -1;
+        long size = -1;
+        long hash;
+        /* Row of each name, lower case - a name used again replaces the earlier row, as in CommandBook */
+        final Map<String, Integer> index = new HashMap<String, Integer>();
+
+        Rows(File file) {
+            this.file = file;
+        }
+
+        private void grow() {
+            int cap = names.length * 2;
+            String[] n = new String[cap]; System.arraycopy(names, 0, n, 0, count); names = n;
+            String[] w = new String[cap]; System.arraycopy(worlds, 0, w, 0, count); worlds = w;
+            double[] d = new double[cap]; System.arraycopy(xs, 0, d, 0, count); xs = d;
+            d = new double[cap]; System.arraycopy(ys, 0, d, 0, count); ys = d;
+            d = new double[cap]; System.arraycopy(zs, 0, d, 0, count); zs = d;
+        }
+    }
+
+    private final File rootfile;
+    private final File worlddir;
+    private final Map<String, Rows> files = new HashMap<String, Rows>();
+    private final List<String> worldnames = new ArrayList<String>();
+    private ByteBuffer heapbuf = ByteBuffer.allocate(64 * 1024);
+    private char[] chars = new char[64];
+    private final int[] fstart = new int[FIELDS];
+    private final int[] fend = new int[FIELDS];
+    private final boolean[] fescaped = new boolean[FIELDS];
+
+    LocationFileReader(File datadir, String type) {
+        rootfile = new File(datadir, type + ".csv");
+        worlddir = new File(datadir, type);
+    }
+
+    /* Check if CommandBook is storing this type in flat files */
+    boolean isAvailable() {
+        return rootfile.isFile() || worlddir.isDirectory();
+    }
+
+    /* Forget checkpoints - next reads parse everything again */
+    void reset() {
+        for(Rows rows : files.values())
+            rows.modified = rows.size = -1;
+    }
+
+    /* Get rows of the world's file, or the single file if not stored per world - rows for other
+     * worlds must be skipped.  Throws ConcurrentModificationException if the file changed while read. */
+    Rows read(String wname, boolean perworld) throws IOException {
+        String key = perworld ? wname : "";
+        Rows rows = files.get(key);
+        if(rows == null) {
+            rows = new Rows(perworld ? new File(worlddir, wname + ".csv") : rootfile);
+            files.put(key, rows);
+        }
+        File f = rows.file;
+        long mod = f.lastModified();
+        long size = f.length();
+        if((mod == rows.modified) && (size == rows.size))
+            return rows;
+        if((mod == 0) && (f.exists() == false)) {  /* No locations */
+            rows.count = 0;
+            rows.index.clear();
+            rows.modified = rows.size = 0;
+            return rows;
+        }
+        boolean ok = false;
+        FileInputStream in = new FileInputStream(f);
+        try {
+            FileChannel ch = in.getChannel();
+            size = ch.size();
+            ByteBuffer buf;
+            if(CAN_MAP && (size >= MAP_THRESHOLD)) {
+                buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            else {
+                if(heapbuf.capacity() < size)
+                    heapbuf = ByteBuffer.allocate((int)Math.max(size, heapbuf.capacity() * 2L));
+                buf = heapbuf;
+                buf.clear();
+                buf.limit((int)size);
+                while(buf.hasRemaining() && (ch.read(buf) >= 0))
+                    ;
+                buf.flip();
+            }
+            int end = buf.limit();
+            int start = 0;
+            long h = FNV_BASIS;
+            /* Only appended to since last read?  Then parse just the new rows */
+            if((rows.size > 0) && (end > rows.size) && (buf.get((int)rows.size - 1) == '\n')) {
+                h = hash(buf, 0, (int)rows.size, h);
+                if(h == rows.hash)
+                    start = (int)rows.size;
+                else
+                    h = hash(buf, (int)rows.size, end, h);
+            }
+            else {
+                h = hash(buf, 0, end, h);
+            }
+            if(start == 0) {
+                rows.count = 0;
+                rows.index.clear();
+                parse(buf, 0, end, rows);
+            }
+            else {
+                parse(buf, start, end, rows);
+                h = hash(buf, start, end, h);
+            }
+            if((f.lastModified() != mod) || (f.length() != end))
+                throw new ConcurrentModificationException();
+            rows.hash = h;
+            rows.modified = mod;
+            rows.size = end;
+            ok = true;
+        } finally {
+            in.close();
+            if(!ok) {   /* Parse everything next time */
+                rows.count = 0;
+                rows.index.clear();
+                rows.modified = rows.size = -1;
+            }
+        }
+        return rows;
+    }
+
+    private static final long FNV_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private static long hash(ByteBuffer buf, int from, int to, long h) {
+        for(int i = from; i < to; i++) {
+            h ^= (buf.get(i) & 0xFF);
+            h *= FNV_PRIME;
+        }
+        return h;
+    }
+
+    private void parse(ByteBuffer buf, int pos, int end, Rows rows) {
+        while(pos < end) {
+            int eol = pos;
+            while((eol < end) && (buf.get(eol) != '\n'))
+                eol++;
+            int lend = eol;
+            if((lend > pos) && (buf.get(lend - 1) == '\r'))
+                lend--;
+            parseLine(buf, pos, lend, rows);
+            pos = eol + 1;
+        }
+    }
+
+    /* Parse one row - quoted fields as written by CommandBook, with "" for a quote */
+    private void parseLine(ByteBuffer buf, int pos, int end, Rows rows) {
+        int f = 0;
+        while((f < FIELDS) && (pos <= end)) {
+            fescaped[f] = false;
+            if((pos < end) && (buf.get(pos) == '"')) {
+                pos++;
+                fstart[f] = pos;
+                while(pos < end) {
+                    if(buf.get(pos) == '"') {
+                        if((pos + 1 < end) && (buf.get(pos + 1) == '"')) {
+                            fescaped[f] = true;
+                            pos += 2;
+                            continue;
+                        }
+                        break;
+                    }
+                    pos++;
+                }
+                fend[f] = pos;
+                while((pos < end) && (buf.get(pos) != ','))
+                    pos++;
+            }
+            else {
+                fstart[f] = pos;
+                while((pos < end) && (buf.get(pos) != ','))
+                    pos++;
+                fend[f] = pos;
+            }
+            pos++;  /* Skip separator */
+            f++;
+        }
+        if(f < FIELDS)  /* Not a location */
+            return;
+        double x, y, z;
+        try {
+            x = parseDouble(buf, fstart[3], fend[3]);
+            y = parseDouble(buf, fstart[4], fend[4]);
+            z = parseDouble(buf, fstart[5], fend[5]);
+            parseDouble(buf, fstart[6], fend[6]);   /* Pitch and yaw must be numbers too */
+            parseDouble(buf, fstart[7], fend[7]);
+        } catch (NumberFormatException nfx) {
+            return;
+        }
+        /* Name is trimmed, with spaces removed */
+        while((fstart[0] < fend[0]) && ((buf.get(fstart[0]) & 0xFF) <= ' '))
+            fstart[0]++;
+        while((fend[0] > fstart[0]) && ((buf.get(fend[0] - 1) & 0xFF) <= ' '))
+            fend[0]--;
+        int i = rows.count;
+        if(i == rows.names.length)
+            rows.grow();
+        String name = rows.names[i];    /* Left from last read, if any - reuse if same */
+        if((name == null) || (sameString(name, buf, 0) == false)) {
+            name = getString(buf, 0);
+            if(name.indexOf(' ') >= 0)
+                name = name.replace(" ", "");
+        }
+        Integer prev = rows.index.put(name.toLowerCase(), i);
+        if(prev != null) {  /* Same name again - replaces earlier row */
+            i = prev;
+            rows.index.put(name.toLowerCase(), i);
+        }
+        else {
+            rows.count++;
+        }
+        rows.names[i] = name;
+        rows.worlds[i] = getWorld(buf);
+        rows.xs[i] = x; rows.ys[i] = y; rows.zs[i] = z;
+    }
+
+    /* Check if field matches string - only for plain ASCII fields */
+    private boolean sameString(String s, ByteBuffer buf, int f) {
+        if(fescaped[f] || (s.length() != fend[f] - fstart[f]))
+            return false;
+        for(int i = fstart[f], j = 0; i < fend[f]; i++, j++) {
+            int b = buf.get(i);
+            if((b < 0) || (b != s.charAt(j)))
+                return false;
+        }
+        return true;
+    }
+
+    private String getWorld(ByteBuffer buf) {
+        for(int i = 0; i < worldnames.size(); i++) {
+            String w = worldnames.get(i);
+            if(sameString(w, buf, 1))
+                return w;
+        }
+        String w = getString(buf, 1);
+        worldnames.add(w);
+        return w;
+    }
+
+    private String getString(ByteBuffer buf, int f) {
+        int len = fend[f] - fstart[f];
+        boolean ascii = true;
+        for(int i = fstart[f]; ascii && (i < fend[f]); i++)
+            ascii = buf.get(i) >= 0;
+        String s;
+        if(ascii) {
+            if(chars.length < len)
+                chars = new char[len * 2];
+            for(int i = 0; i < len; i++)
+                chars[i] = (char)buf.get(fstart[f] + i);
+            s = new String(chars, 0, len);
+        }
+        else {
+            byte[] b = new byte[len];
+            for(int i = 0; i < len; i++)
+                b[i] = buf.get(fstart[f] + i);
+            try {
+                s = new String(b, "UTF-8");
+            } catch (java.io.UnsupportedEncodingException uex) {
+                s = new String(b);
+            }
+        }
+        if(fescaped[f])
+            s = s.replace("\"\"", "\"");
+        return s;
+    }
+
+    /* Parse number without building a string, when it can be done exactly - plain decimals with up to
+     * 15 significant digits.  Anything else goes to Double.parseDouble. */
+    private double parseDouble(ByteBuffer buf, int start, int end) {
+        int i = start;
+        boolean neg = false;
+        if((i < end) && ((buf.get(i) == '-') || (buf.get(i) == '+'))) {
+            neg = buf.get(i) == '-';
+            i++;
+        }
+        long mant = 0;
+        int digits = 0, frac = 0;
+        boolean dot = false, any = false;
+        for(; i < end; i++) {
+            int c = buf.get(i);
+            if((c >= '0') && (c <= '9')) {
+                any = true;
+                if((mant == 0) && (c == '0')) {     /* Leading zeros don't count */
+                    if(dot) frac++;
+                    continue;
+                }
+                mant = mant * 10 + (c - '0');
+                digits++;
+                if(dot) frac++;
+                if(digits > 15)
+                    return slowParse(buf, start, end);
+            }
+            else if((c == '.') && !dot) {
+                dot = true;
+            }
+            else {
+                return slowParse(buf, start, end);
+            }
+        }
+        if(!any)
+            throw new NumberFormatException();
+        if(frac >= POW10.length)
+            return slowParse(buf, start, end);
+        double v = mant / POW10[frac];
+        return neg ? -v : v;
+    }
+
+    private double slowParse(ByteBuffer buf, int start, int end) {
+        int len = end - start;
+        if(chars.length < len)
+            chars = new char[len * 2];
+        for(int i = 0; i < len; i++)
+            chars[i] = (char)(buf.get(start + i) & 0xFF);
+        return Double.parseDouble(new String(chars, 0, len));
+    }
+}
@@ -0,0 +1,335 @@
+package org.dynmap.commandbook;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Limits a layer to its best ranked locations.  Every visible location is an entry in one of two
+ * heaps: the shown ones in a heap with the worst ranked on top, and the rest in a heap with the best
+ * ranked on top - so adding, moving or removing a location, or changing its rank, costs a few heap
+ * steps and at most one swap across the cutoff.  A waiting location only replaces a shown one if it
+ * ranks strictly better, so ties never churn markers.  Changes are turned into marker creates and
+ * deletes by emit(), which only reports markers whose final state differs from what is on the map.
+ * Only used by the async update stage.
+ */
+class MarkerCap {
+    /* Ranking - most recently set or moved, owner online or most recently seen, nearest to world spawn */
+    static final int RANK_RECENT = 0;
+    static final int RANK_SEEN = 1;
+    static final int RANK_SPAWN = 2;
+
+    static int getRank(String rank) {
+        if(rank.equalsIgnoreCase("seen"))
+            return RANK_SEEN;
+        if(rank.equalsIgnoreCase("spawn"))
+            return RANK_SPAWN;
+        return RANK_RECENT;
+    }
+
+    private static class Entry {
+        MarkerRecord rec;
+        long score;
+        int pos;    /* Index in its heap */
+        boolean shown;
+    }
+
+    /* Binary heap of entries, keeping each entry's index so it can be updated or removed in place */
+    private static class Heap {
+        final boolean min;  /* Lowest score on top - else highest */
+        Entry[] a = new Entry[16];
+        int n;
+
+        Heap(boolean min) {
+            this.min = min;
+        }
+
+        private boolean above(Entry x, Entry y) {
+            return min ? (x.score < y.score) : (x.score > y.score);
+        }
+
+        Entry peek() {
+            return a[0];
+        }
+
+        void add(Entry e) {
+            if(n == a.length)
+                a = Arrays.copyOf(a, n * 2);
+            a[n] = e;
+            e.pos = n;
+            n++;
+            up(e.pos);
+        }
+
+        Entry poll() {
+            Entry e = a[0];
+            remove(e);
+            return e;
+        }
+
+        void remove(Entry e) {
+            int i = e.pos;
+            n--;
+            Entry last = a[n];
+            a[n] = null;
+            if(i < n) {
+                a[i] = last;
+                last.pos = i;
+                update(last);
+            }
+        }
+
+        /* Entry's score changed */
+        void update(Entry e) {
+            up(e.pos);
+            down(e.pos);
+        }
+
+        void heapify() {
+            for(int i = n / 2 - 1; i >= 0; i--)
+                down(i);
+        }
+
+        private void up(int i) {
+            Entry e = a[i];
+            while(i > 0) {
+                int p = (i - 1) / 2;
+                if(!above(e, a[p]))
+                    break;
+                a[i] = a[p];
+                a[i].pos = i;
+                i = p;
+            }
+            a[i] = e;
+            e.pos = i;
+        }
+
+        private void down(int i) {
+            Entry e = a[i];
+            while(true) {
+                int c = 2 * i + 1;
+                if(c >= n)
+                    break;
+                if((c + 1 < n) && above(a[c + 1], a[c]))
+                    c++;
+                if(!above(a[c], e))
+                    break;
+                a[i] = a[c];
+                a[i].pos = i;
+                i = c;
+            }
+            a[i] = e;
+            e.pos = i;
+        }
+    }
+
+    private int max;
+    private int rank = -1;
+    /* By marker ID - not case sensitive, as the layer's marker IDs, so rescore() can be given a name as the player has it */
+    private final Map<String, Entry> entries = new TreeMap<String, Entry>(String.CASE_INSENSITIVE_ORDER);
+    private final Heap shown = new Heap(true);
+    private final Heap waiting = new Heap(false);
+    /* Markers changed since last emit() - with their record on the map before the first change (null if none) */
+    private final Map<String, MarkerRecord> prev = new HashMap<String, MarkerRecord>();
+    /* Ranking inputs for this update */
+    private long now;
+    private Map<String, double[]> spawns = new HashMap<String, double[]>();
+    private Set<String> online;
+    private LastSeenIndex lastseen;
+
+    /* Set ranking inputs for this update - spawns are world spawn x and z, by world.  Ranking all
+     * again if a world spawn has moved */
+    void setInputs(long now, Map<String, double[]> spawns, Set<String> online, LastSeenIndex lastseen) {
+        this.now = now;
+        this.online = online;
+        this.lastseen = lastseen;
+        boolean moved = spawns.size() != this.spawns.size();
+        for(Map.Entry<String, double[]> ent : spawns.entrySet()) {
+            if(moved) break;
+            moved = !Arrays.equals(ent.getValue(), this.spawns.get(ent.getKey()));
+        }
+        this.spawns = spawns;
+        if(moved && (rank == RANK_SPAWN))
+            rescoreAll();
+    }
+
+    /* Set limit and ranking - everything is ranked again if the ranking changed */
+    void configure(int max, int rank) {
+        this.max = max;
+        if(rank != this.rank) {
+            this.rank = rank;
+            if(rank == RANK_RECENT) {   /* Nothing known about when locations were set */
+                for(Entry e : entries.values())
+                    e.score = 0;
+            }
+            rescoreAll();
+        }
+        else {
+            balance();
+        }
+    }
+
+    /* Start from locations that all have markers - as when the layer had no limit */
+    void load(Collection<MarkerRecord> recs) {
+        for(MarkerRecord r : recs) {
+            Entry e = new Entry();
+            e.rec = r;
+            e.score = score(e, true);
+            e.shown = true;
+            entries.put(r.id, e);
+            shown.add(e);
+        }
+        balance();
+    }
+
+    /* Location added */
+    void add(MarkerRecord r) {
+        Entry e = entries.get(r.id);
+        if(e != null) {
+            update(r);
+            return;
+        }
+        e = new Entry();
+        e.rec = r;
+        e.score = score(e, true);
+        note(e);
+        entries.put(r.id, e);
+        waiting.add(e);
+        balance();
+    }
+
+    /* Location moved or relabeled */
+    void update(MarkerRecord r) {
+        Entry e = entries.get(r.id);
+        if(e == null) {
+            add(r);
+            return;
+        }
+        note(e);
+        MarkerRecord old = e.rec;
+        e.rec = r;
+        boolean moved = (old.x != r.x) || (old.y != r.y) || (old.z != r.z) || (old.world.equals(r.world) == false);
+        setScore(e, score(e, moved));
+    }
+
+    /* Location gone */
+    void remove(String id) {
+        Entry e = entries.remove(id);
+        if(e == null)
+            return;
+        note(e);
+        if(e.shown)
+            shown.remove(e);
+        else
+            waiting.remove(e);
+        e.shown = false;
+        balance();
+    }
+
+    /* Rank of marker may have changed - owner came online or left */
+    void rescore(String id) {
+        Entry e = entries.get(id);
+        if(e != null)
+            setScore(e, score(e, false));
+    }
+
+    /* Add markers whose state differs from what is on the map to diff - and start tracking again */
+    void emit(MarkerDiff diff) {
+        for(Map.Entry<String, MarkerRecord> ent : prev.entrySet()) {
+            MarkerRecord before = ent.getValue();
+            Entry e = entries.get(ent.getKey());
+            MarkerRecord after = ((e != null) && e.shown) ? e.rec : null;
+            if(before == null) {
+                if(after != null)
+                    diff.creates.add(after);
+            }
+            else if(after == null) {
+                diff.deletes.add(before);
+            }
+            else if((after != before) && (after.sameAs(before) == false)) {
+                diff.updates.add(after);
+            }
+        }
+        prev.clear();
+        diff.unchanged = Math.max(0, shown.n - diff.creates.size() - diff.updates.size());
+    }
+
+    /* Locations without markers */
+    int getHidden() {
+        return waiting.n;
+    }
+
+    /* Remember marker as it is on the map, before its first change since last emit() */
+    private void note(Entry e) {
+        String id = e.rec.id;
+        if(prev.containsKey(id) == false)
+            prev.put(id, e.shown ? e.rec : null);
+    }
+
+    private void setScore(Entry e, long score) {
+        if(score == e.score)
+            return;
+        e.score = score;
+        if(e.shown)
+            shown.update(e);
+        else
+            waiting.update(e);
+        balance();
+    }
+
+    /* Fill shown heap up to the limit, then swap while a waiting entry beats the worst shown one */
+    private void balance() {
+        while(shown.n > max)
+            hide(shown.poll());
+        while((shown.n < max) && (waiting.n > 0))
+            show(waiting.poll());
+        while((shown.n > 0) && (waiting.n > 0) && (waiting.peek().score > shown.peek().score)) {
+            Entry out = shown.poll();
+            show(waiting.poll());
+            hide(out);
+        }
+    }
+
+    private void show(Entry e) {
+        note(e);
+        e.shown = true;
+        shown.add(e);
+    }
+
+    private void hide(Entry e) {
+        note(e);
+        e.shown = false;
+        waiting.add(e);
+    }
+
+    /* Higher is better */
+    private long score(Entry e, boolean moved) {
+        MarkerRecord r = e.rec;
+        switch(rank) {
+            case RANK_SEEN:
+                if((online != null) && online.contains(r.name))
+                    return Long.MAX_VALUE;
+                return (lastseen != null) ? lastseen.getLastSeen(r.name) : 0;
+            case RANK_SPAWN:
+                double[] sp = spawns.get(r.world);
+                if(sp == null)
+                    return Long.MIN_VALUE;
+                double dx = r.x - sp[0], dz = r.z - sp[1];
+                return -(long)(dx*dx + dz*dz);
+            default:
+                return moved ? now : e.score;
+        }
+    }
+
+    /* Rank everything again, and rebuild heaps */
+    private void rescoreAll() {
+        for(Entry e : entries.values())
+            e.score = score(e, false);
+        shown.heapify();
+        waiting.heapify();
+        balance();
+    }
+}
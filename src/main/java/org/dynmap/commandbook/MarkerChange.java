@@ -0,0 +1,55 @@
+package org.dynmap.commandbook;
+
+/**
+ * One change made to a home, warp or spawn marker - part of the change feed published through
+ * MarkerChangeEvent and MarkerChangeFeed.  Coordinates and label are the marker's values after the
+ * change (before it, for deletes).
+ */
+public final class MarkerChange {
+    public enum Type {
+        /* New marker */
+        CREATED,
+        /* Location changed - label may have changed too */
+        MOVED,
+        /* Only label changed */
+        RELABELED,
+        /* Marker removed */
+        DELETED
+    }
+    
+    private final long sequence;
+    private final Type type;
+    private final String layer;
+    private final String id;
+    private final String world;
+    private final double x, y, z;
+    private final String label;
+    
+    MarkerChange(long sequence, Type type, String layer, String id, String world, double x, double y, double z, String label) {
+        this.sequence = sequence;
+        this.type = type;
+        this.layer = layer;
+        this.id = id;
+        this.world = world;
+        this.x = x; this.y = y; this.z = z;
+        this.label = label;
+    }
+    
+    /** Position in the change feed - increases by one for each change */
+    public long getSequence() { return sequence; }
+    public Type getType() { return type; }
+    /** Layer ID - "homes", "warps" or "spawns" */
+    public String getLayer() { return layer; }
+    /** Marker ID - "<world>/<name>" */
+    public String getMarkerID() { return id; }
+    public String getWorld() { return world; }
+    public double getX() { return x; }
+    public double getY() { return y; }
+    public double getZ() { return z; }
+    public String getLabel() { return label; }
+    
+    @Override
+    public String toString() {
+        return "#" + sequence + " " + type + " " + layer + ":" + id + " @ " + world + "," + x + "," + y + "," + z + " '" + label + "'";
+    }
+}
@@ -0,0 +1,34 @@
+package org.dynmap.commandbook;
+
+import java.util.List;
+
+import org.bukkit.event.Event;
+import org.bukkit.event.HandlerList;
+
+/**
+ * Marker changes applied since the last event - fired on the server thread at the end of each update
+ * cycle, and on the tick after changes made outside a cycle (commands, players joining or leaving,
+ * spawn changes).  Only fired if something is listening.
+ */
+public class MarkerChangeEvent extends Event {
+    private static final HandlerList handlers = new HandlerList();
+    private final List<MarkerChange> changes;
+    
+    MarkerChangeEvent(List<MarkerChange> changes) {
+        this.changes = changes;
+    }
+    
+    /** Changes, oldest first - unmodifiable */
+    public List<MarkerChange> getChanges() {
+        return changes;
+    }
+    
+    @Override
+    public HandlerList getHandlers() {
+        return handlers;
+    }
+    
+    public static HandlerList getHandlerList() {
+        return handlers;
+    }
+}
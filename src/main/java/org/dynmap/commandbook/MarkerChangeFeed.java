@@ -0,0 +1,24 @@
+package org.dynmap.commandbook;
+
+import java.util.List;
+
+/**
+ * Recent marker changes, for plugins that want to follow them instead of scanning dynmap's marker
+ * sets.  Registered with Bukkit's ServicesManager while Dynmap-CommandBook is enabled.  Changes are
+ * kept in a bounded buffer: a consumer remembers the last sequence number it saw and asks for what
+ * came after it - if it fell so far behind that changes were dropped, it gets null, and must read
+ * the marker sets once to catch up.  Safe to use from any thread.
+ */
+public interface MarkerChangeFeed {
+    /** Sequence number of the latest change - 0 if none yet */
+    public long getLatestSequence();
+    
+    /** Sequence number of the oldest change still kept */
+    public long getOldestSequence();
+    
+    /** Changes with sequence numbers after the given one, oldest first - null if some have been dropped */
+    public List<MarkerChange> getChangesSince(long sequence);
+    
+    /** Most changes kept */
+    public int getCapacity();
+}
@@ -0,0 +1,136 @@
+package org.dynmap.commandbook;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.dynmap.markers.Marker;
+import org.dynmap.markers.MarkerIcon;
+import org.dynmap.markers.MarkerSet;
+
+/**
+ * Groups a layer's markers into grid cells, with one marker per cell showing how many markers it
+ * holds.  Kept in its own marker set, shown only below the zoom level where the layer's own markers
+ * appear.  Counts are adjusted as markers are added, moved and removed - only cells that changed
+ * have their marker updated, when flush() is called.
+ */
+class MarkerClusters {
+    private final MarkerSet set;
+    private final MarkerIcon icon;
+    private final String labelfmt;
+    private final int cellsize;
+    /* Cells with markers, by world then cell key */
+    private final Map<String, Map<Long, Cell>> cells = new HashMap<String, Map<Long, Cell>>();
+    private final List<Cell> dirty = new ArrayList<Cell>();
+    
+    private static class Cell {
+        final String world;
+        final int cx, cz;
+        int count;
+        double sumx, sumy, sumz;
+        Marker marker;
+        boolean isdirty;
+        
+        Cell(String world, int cx, int cz) {
+            this.world = world;
+            this.cx = cx; this.cz = cz;
+        }
+    }
+    
+    MarkerClusters(MarkerSet set, MarkerIcon icon, String labelfmt, int cellsize) {
+        this.set = set;
+        this.icon = icon;
+        this.labelfmt = labelfmt;
+        this.cellsize = (cellsize > 0) ? cellsize : 512;
+    }
+    
+    void add(String world, double x, double y, double z) {
+        Cell c = getCell(world, x, z, true);
+        c.count++;
+        c.sumx += x; c.sumy += y; c.sumz += z;
+        markDirty(c);
+    }
+    
+    void remove(String world, double x, double y, double z) {
+        Cell c = getCell(world, x, z, false);
+        if(c == null) return;
+        c.count--;
+        c.sumx -= x; c.sumy -= y; c.sumz -= z;
+        markDirty(c);
+    }
+    
+    /* Update markers for cells that changed - returns number of marker API calls made */
+    int flush() {
+        int calls = 0;
+        for(Cell c : dirty) {
+            c.isdirty = false;
+            String id = c.world + "_" + c.cx + "_" + c.cz;
+            if(c.count <= 0) {
+                if(c.marker != null) {
+                    c.marker.deleteMarker();
+                    c.marker = null;
+                    calls++;
+                }
+                Map<Long, Cell> wcells = cells.get(c.world);
+                if(wcells != null) {
+                    wcells.remove(cellKey(c.cx, c.cz));
+                    if(wcells.isEmpty())
+                        cells.remove(c.world);
+                }
+                continue;
+            }
+            String label = labelfmt.replace("%count%", Integer.toString(c.count));
+            double x = c.sumx / c.count, y = c.sumy / c.count, z = c.sumz / c.count;
+            if(c.marker == null) {
+                c.marker = set.createMarker(id, label, c.world, x, y, z, icon, false);
+                calls++;
+            }
+            else {
+                c.marker.setLocation(c.world, x, y, z);
+                calls++;
+                if(label.equals(c.marker.getLabel()) == false) {
+                    c.marker.setLabel(label);
+                    calls++;
+                }
+            }
+        }
+        dirty.clear();
+        return calls;
+    }
+    
+    void cleanup() {
+        set.deleteMarkerSet();
+        cells.clear();
+        dirty.clear();
+    }
+    
+    private void markDirty(Cell c) {
+        if(!c.isdirty) {
+            c.isdirty = true;
+            dirty.add(c);
+        }
+    }
+    
+    private Cell getCell(String world, double x, double z, boolean create) {
+        int cx = (int)Math.floor(x / cellsize);
+        int cz = (int)Math.floor(z / cellsize);
+        Map<Long, Cell> wcells = cells.get(world);
+        if(wcells == null) {
+            if(!create) return null;
+            wcells = new HashMap<Long, Cell>();
+            cells.put(world, wcells);
+        }
+        Long key = cellKey(cx, cz);
+        Cell c = wcells.get(key);
+        if((c == null) && create) {
+            c = new Cell(world, cx, cz);
+            wcells.put(key, c);
+        }
+        return c;
+    }
+    
+    private static Long cellKey(int cx, int cz) {
+        return Long.valueOf(((long)cx << 32) | (cz & 0xFFFFFFFFL));
+    }
+}
@@ -0,0 +1,48 @@
+package org.dynmap.commandbook;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Markers to create, update and delete to turn one snapshot of a layer into the next - filled in
+ * by SnapshotBuilder.
+ * Applied in phases - deletes first, then updates (moves), then creates - and may be
+ * spread over several ticks, so it also keeps how far each phase has got.
+ */
+class MarkerDiff {
+    static final int DELETE = 0;
+    static final int UPDATE = 1;
+    static final int CREATE = 2;
+    static final int PHASES = 3;
+    
+    final List<MarkerRecord> creates = new ArrayList<MarkerRecord>();
+    final List<MarkerRecord> updates = new ArrayList<MarkerRecord>();
+    final List<MarkerRecord> deletes = new ArrayList<MarkerRecord>();
+    int unchanged;
+    /* Next record to apply, for each phase */
+    final int[] next = new int[PHASES];
+    
+    int size() {
+        return creates.size() + updates.size() + deletes.size();
+    }
+    
+    List<MarkerRecord> getPhase(int phase) {
+        switch(phase) {
+            case DELETE:
+                return deletes;
+            case UPDATE:
+                return updates;
+            default:
+                return creates;
+        }
+    }
+    
+    /* Check if all phases have been applied */
+    boolean isDone() {
+        for(int phase = 0; phase < PHASES; phase++) {
+            if(next[phase] < getPhase(phase).size())
+                return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,25 @@
+package org.dynmap.commandbook;
+
+/**
+ * Immutable record of how one home or warp should appear on the map - built off the server thread
+ */
+class MarkerRecord {
+    final String id;
+    final String world;
+    final String name;
+    final double x, y, z;
+    final String label;
+    
+    MarkerRecord(String id, String world, String name, double x, double y, double z, String label) {
+        this.id = id;
+        this.world = world;
+        this.name = name;
+        this.x = x; this.y = y; this.z = z;
+        this.label = label;
+    }
+    
+    /* Check if record would produce the same marker as this one */
+    boolean sameAs(MarkerRecord r) {
+        return (x == r.x) && (y == r.y) && (z == r.z) && world.equals(r.world) && label.equals(r.label);
+    }
+}
@@ -41,11 +41,12 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
 import java.net.Proxy;
 import java.net.URL;
-import java.net.URLConnection;
 import java.net.URLEncoder;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 
 public class MetricsLite {
@@ -70,6 +71,17 @@ public class MetricsLite {
      */
     private final static int PING_INTERVAL = 10;
 
+    /**
+     * Time allowed to connect, and to wait for the response (in milliseconds)
+     */
+    private final static int CONNECT_TIMEOUT = 5000;
+    private final static int READ_TIMEOUT = 10000;
+
+    /**
+     * Most ping intervals skipped after repeated failures
+     */
+    private final static int MAX_BACKOFF = 16;
+
     /**
      * The plugin this metrics submits for
      */
@@ -95,22 +107,53 @@ public class MetricsLite {
      */
     private final boolean debug;
 
+    /**
+     * The base url reports are sent to
+     */
+    private final String baseUrl;
+
     /**
      * Lock for synchronization
      */
     private final Object optOutLock = new Object();
 
+    /**
+     * Cached opt-out state, and the modification time and size of the config file it was read from
+     */
+    private volatile boolean optOut;
+    private long optOutModified = -1;
+    private long optOutSize = -1;
+
+    /**
+     * Set while a report is being sent - never more than one at a time
+     */
+    private final AtomicBoolean inFlight = new AtomicBoolean();
+
+    /**
+     * Failed reports in a row, and ping intervals left to skip before trying again
+     */
+    private int failures = 0;
+    private int skip = 0;
+
     /**
      * Id of the scheduled task
      */
     private volatile BukkitTask task = null;
 
     public MetricsLite(Plugin plugin) throws IOException {
+        this(plugin, BASE_URL);
+    }
+
+    /**
+     * Report to another server - such as a local stand-in, for testing
+     */
+    public MetricsLite(Plugin plugin, String baseUrl) throws IOException {
         if (plugin == null) {
             throw new IllegalArgumentException("Plugin cannot be null");
         }
 
         this.plugin = plugin;
+        this.baseUrl = baseUrl;
 
         // load the config
         configurationFile = getConfigFile();
@@ -157,14 +200,27 @@ public class MetricsLite {
                 private boolean firstPost = true;
 
                 public void run() {
+                    // Never let a slow server build up reports
+                    if (!inFlight.compareAndSet(false, true)) {
+                        return;
+                    }
                     try {
-                        // This has to be synchronized or it can collide with the disable method.
-                        synchronized (optOutLock) {
-                            // Disable Task, if it is running and the server owner decided to opt-out
-                            if (isOptOut() && task != null) {
-                                task.cancel();
-                                task = null;
+                        // Disable Task, if it is running and the server owner decided to opt-out
+                        if (isOptOut()) {
+                            // This has to be synchronized or it can collide with the disable method.
+                            synchronized (optOutLock) {
+                                if (task != null) {
+                                    task.cancel();
+                                    task = null;
+                                }
                             }
+                            return;
+                        }
+
+                        // Back off after failures
+                        if (skip > 0) {
+                            skip--;
+                            return;
                         }
 
                         // We use the inverse of firstPost because if it is the first time we are posting,
@@ -175,10 +231,16 @@ public class MetricsLite {
                         // After the first post we set firstPost to false
                         // Each post thereafter will be a ping
                         firstPost = false;
+                        failures = 0;
                     } catch (IOException e) {
+                        // Skip 1, 2, 4... intervals before the next try
+                        skip = Math.min(1 << Math.min(failures, 30), MAX_BACKOFF);
+                        failures++;
                         if (debug) {
                             Bukkit.getLogger().log(Level.INFO, "[Metrics] " + e.getMessage());
                         }
+                    } finally {
+                        inFlight.set(false);
                     }
                 }
             }, 0, PING_INTERVAL * 1200);
@@ -188,30 +250,50 @@ public class MetricsLite {
     }
 
     /**
-     * Has the server owner denied plugin metrics?
+     * Has the server owner denied plugin metrics? The config file is only read again when it has changed.
      *
      * @return true if metrics should be opted out of it
      */
     public boolean isOptOut() {
+        File file = getConfigFile();
+        long modified = file.lastModified();
+        long size = file.length();
         synchronized(optOutLock) {
+            if ((modified == optOutModified) && (size == optOutSize)) {
+                return optOut;
+            }
             try {
                 // Reload the metrics file
-                configuration.load(getConfigFile());
+                configuration.load(file);
+                optOut = configuration.getBoolean("opt-out", false);
             } catch (IOException ex) {
                 if (debug) {
                     Bukkit.getLogger().log(Level.INFO, "[Metrics] " + ex.getMessage());
                 }
-                return true;
+                optOut = true;
             } catch (InvalidConfigurationException ex) {
                 if (debug) {
                     Bukkit.getLogger().log(Level.INFO, "[Metrics] " + ex.getMessage());
                 }
-                return true;
+                optOut = true;
             }
-            return configuration.getBoolean("opt-out", false);
+            optOutModified = modified;
+            optOutSize = size;
+            return optOut;
         }
     }
 
+    /**
+     * Save the config file, and cache the opt-out state just written
+     */
+    private void saveOptOut(boolean value) throws IOException {
+        configuration.set("opt-out", value);
+        configuration.save(configurationFile);
+        optOut = value;
+        optOutModified = configurationFile.lastModified();
+        optOutSize = configurationFile.length();
+    }
+
     /**
      * Enables metrics for the server by setting "opt-out" to false in the config file and starting the metrics task.
      *
@@ -222,8 +304,7 @@ public class MetricsLite {
         synchronized (optOutLock) {
             // Check if the server owner has already set opt-out, if not, set it.
             if (isOptOut()) {
-                configuration.set("opt-out", false);
-                configuration.save(configurationFile);
+                saveOptOut(false);
             }
 
             // Enable Task, if it is not running
@@ -243,8 +324,7 @@ public class MetricsLite {
         synchronized (optOutLock) {
             // Check if the server owner has already set opt-out, if not, set it.
             if (!isOptOut()) {
-                configuration.set("opt-out", true);
-                configuration.save(configurationFile);
+                saveOptOut(true);
             }
 
             // Disable Task, if it is running
@@ -321,33 +401,50 @@ public class MetricsLite {
         }
 
         // Create the url
-        URL url = new URL(BASE_URL + String.format(REPORT_URL, encode(pluginName)));
+        URL url = new URL(baseUrl + String.format(REPORT_URL, encode(pluginName)));
 
         // Connect to the website
-        URLConnection connection;
+        HttpURLConnection connection;
 
         // Mineshafter creates a socks proxy, so we can safely bypass it
         // It does not reroute POST requests so we need to go around it
         if (isMineshafterPresent()) {
-            connection = url.openConnection(Proxy.NO_PROXY);
+            connection = (HttpURLConnection) url.openConnection(Proxy.NO_PROXY);
         } else {
-            connection = url.openConnection();
+            connection = (HttpURLConnection) url.openConnection();
         }
 
+        // A stalled server must not hold the scheduler thread
+        connection.setConnectTimeout(CONNECT_TIMEOUT);
+        connection.setReadTimeout(READ_TIMEOUT);
+        connection.setRequestMethod("POST");
         connection.setDoOutput(true);
 
-        // Write the data
-        final OutputStreamWriter writer = new OutputStreamWriter(connection.getOutputStream());
-        writer.write(data.toString());
-        writer.flush();
+        String response;
+        try {
+            // Write the data
+            final OutputStreamWriter writer = new OutputStreamWriter(connection.getOutputStream(), "UTF-8");
+            try {
+                writer.write(data.toString());
+                writer.flush();
+            } finally {
+                writer.close();
+            }
 
-        // Now read the response
-        final BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream()));
-        final String response = reader.readLine();
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                throw new IOException("HTTP " + connection.getResponseCode());
+            }
 
-        // close resources
-        writer.close();
-        reader.close();
+            // Now read the response
+            final BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream(), "UTF-8"));
+            try {
+                response = reader.readLine();
+            } finally {
+                reader.close();
+            }
+        } finally {
+            connection.disconnect();
+        }
 
         if (response == null || response.startsWith("ERR")) {
             throw new IOException(response); //Throw the exception
@@ -0,0 +1,116 @@
+package org.dynmap.commandbook;
+
+import java.util.Set;
+
+/**
+ * Scans one world's visible locations for a layer against its last snapshot, adding what changed
+ * to a MarkerDiff - records and IDs are reused where nothing changed.  The snapshot itself is only
+ * changed by commit(), once every world has been scanned.  Has no server dependencies, so it can
+ * be run on synthetic data by LayerBenchmark.
+ */
+class SnapshotBuilder {
+    private final String wname;
+    private final WorldSnapshot snap;
+    private final MarkerDiff diff;
+    private final LabelFormat labelfmt;
+    private final VisibilityRules.WorldFilter filter;
+    private final Set<String> online;
+    private final boolean newlabels;
+    /* If set, only names seen since the given time are shown */
+    private LastSeenIndex lastseen;
+    private long seensince;
+    /* This world's part of the diff's creates and updates */
+    private int firstcreate, firstupdate, endcreate, endupdate;
+    int rejected;
+    
+    /* online is set of online players, if only their locations are shown - otherwise null.
+     * If newlabels is set, labels are always built again (label format changed).  snap and diff
+     * may be null, if only used for isShown() */
+    SnapshotBuilder(String wname, WorldSnapshot snap, MarkerDiff diff, LabelFormat labelfmt, VisibilityRules.WorldFilter filter, Set<String> online, boolean newlabels) {
+        this.wname = wname;
+        this.snap = snap;
+        this.diff = diff;
+        this.labelfmt = labelfmt;
+        this.filter = filter;
+        this.online = online;
+        this.newlabels = newlabels;
+        if(snap != null) {
+            snap.nextGeneration();
+            firstcreate = diff.creates.size();
+            firstupdate = diff.updates.size();
+        }
+    }
+    
+    /* Only show names seen since the given time */
+    void setSeenSince(LastSeenIndex lastseen, long since) {
+        this.lastseen = lastseen;
+        this.seensince = since;
+    }
+    
+    /* Check if everything on world is hidden - no need to read its locations */
+    boolean isAllHidden() {
+        return filter.allhidden;
+    }
+    
+    /* Check if location should be shown - visibility settings and, if needed, player online */
+    boolean isShown(String name) {
+        /* Skip if not visible */
+        if(filter.isVisible(name) == false)
+            return false;
+        /* If online only, check if player is online */
+        if((online != null) && (online.contains(name) == false))
+            return false;
+        /* If inactive players are hidden, check when last seen */
+        if((lastseen != null) && (lastseen.getLastSeen(name) < seensince))
+            return false;
+        return true;
+    }
+    
+    /* Add location, if shown */
+    void add(String name, double x, double y, double z) {
+        if(isShown(name) == false) {
+            rejected++;
+            return;
+        }
+        MarkerRecord old = snap.see(name);
+        if(old == null) {
+            diff.creates.add(makeRecord(null, labelfmt, wname + "/" + name, wname, name, x, y, z));
+        }
+        else {
+            MarkerRecord r = makeRecord(newlabels ? null : old, labelfmt, old.id, wname, name, x, y, z);
+            if((r == old) || old.sameAs(r))
+                diff.unchanged++;
+            else
+                diff.updates.add(r);
+        }
+    }
+    
+    /* All locations added */
+    void finish() {
+        endcreate = diff.creates.size();
+        endupdate = diff.updates.size();
+    }
+    
+    /* Store changes in the snapshot, and add locations no longer there to the diff's deletes */
+    void commit() {
+        for(int i = firstupdate; i < endupdate; i++)
+            snap.put(diff.updates.get(i));
+        for(int i = firstcreate; i < endcreate; i++)
+            snap.put(diff.creates.get(i));
+        snap.sweep(diff.deletes);
+    }
+    
+    /* Build record of how location should be shown - reuses old record, or at least its label, if still right */
+    static MarkerRecord makeRecord(MarkerRecord old, LabelFormat labelfmt, String id, String wname, String name, double x, double y, double z) {
+        String label;
+        if((old != null) && labelfmt.isSameLabel(old, name, wname, x, y, z)) {
+            if((old.x == x) && (old.y == y) && (old.z == z) && old.world.equals(wname))
+                return old;
+            label = old.label;
+        }
+        else {
+            label = labelfmt.format(name, wname, x, y, z);
+        }
+        return new MarkerRecord(id, wname, name, x, y, z, label);
+    }
+}
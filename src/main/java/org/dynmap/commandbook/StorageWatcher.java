@@ -0,0 +1,84 @@
+package org.dynmap.commandbook;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Polls the modification time and size of CommandBook's flat file storage for one location type
+ * (<type>.csv, or <type>/<world>.csv when stored per world), to find the worlds whose locations
+ * may have changed since the last check.  What a check finds only counts once commit() is called,
+ * after the worlds it found have been read - so a scan that fails is repeated.
+ */
+class StorageWatcher {
+    /* Modification times within this long of the last check are not trusted - file systems with
+     * coarse timestamps could hide a second change made in the same interval */
+    private static final long MTIME_SLACK = 2000;
+    
+    private final File rootfile;
+    private final File worlddir;
+    private final Map<String, long[]> stamps = new HashMap<String, long[]>();
+    private Set<String> lastworlds;
+    private long lastcheck;
+    /* Found by last check, until committed */
+    private final Map<String, long[]> newstamps = new HashMap<String, long[]>();
+    private Set<String> newworlds;
+    private long newcheck;
+    
+    StorageWatcher(File datadir, String type) {
+        rootfile = new File(datadir, type + ".csv");
+        worlddir = new File(datadir, type);
+    }
+    
+    /* Get names of worlds that need to be rescanned - null if all of them do */
+    Set<String> getChangedWorlds(List<String> worlds, boolean perworld) {
+        long now = System.currentTimeMillis();
+        Set<String> changed = new HashSet<String>();
+        boolean all = false;
+        newstamps.clear();
+        newworlds = null;
+        /* If worlds loaded or unloaded, rescan everything */
+        if((lastworlds == null) || (lastworlds.size() != worlds.size()) || (lastworlds.containsAll(worlds) == false)) {
+            newworlds = new HashSet<String>(worlds);
+            all = true;
+        }
+        if(perworld) {
+            for(String wname : worlds) {
+                if(checkFile(wname, new File(worlddir, wname + ".csv")))
+                    changed.add(wname);
+            }
+        }
+        else if(checkFile("", rootfile)) {
+            all = true;
+        }
+        newcheck = now;
+        return all ? null : changed;
+    }
+    
+    /* Worlds found by last check have been read - don't report them again until they change */
+    void commit() {
+        if(newcheck == 0)
+            return;
+        stamps.putAll(newstamps);
+        newstamps.clear();
+        if(newworlds != null)
+            lastworlds = newworlds;
+        newworlds = null;
+        lastcheck = newcheck;
+        newcheck = 0;
+    }
+    
+    /* Check if file changed since last committed check */
+    private boolean checkFile(String key, File f) {
+        long mtime = f.lastModified();  /* 0 if missing */
+        long size = f.length();
+        newstamps.put(key, new long[] { mtime, size });
+        long[] stamp = stamps.get(key);
+        if(stamp == null)
+            return true;
+        return (stamp[0] != mtime) || (stamp[1] != size) || (mtime + MTIME_SLACK >= lastcheck);
+    }
+}
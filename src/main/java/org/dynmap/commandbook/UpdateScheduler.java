@@ -0,0 +1,82 @@
+package org.dynmap.commandbook;
+
+/**
+ * Picks the delay before the next periodic update: halved after an update that found changes,
+ * doubled after one that found nothing, and doubled again while the server runs below the low
+ * TPS threshold - always between the minimum and maximum period.  Server TPS is measured from
+ * how long the scheduled delay actually took, so no extra task is needed.
+ */
+class UpdateScheduler {
+    private long minticks;
+    private long maxticks;
+    private double lowtps;
+    /* Period as configured, and as adapted since */
+    private long baseperiod;
+    private long period;
+    /* When the pending update was scheduled, and for how many ticks */
+    private long scheduledat;
+    private long scheduledticks;
+    private double tps = 20.0;
+
+    /* All periods in server ticks - with minticks equal to maxticks, the period is fixed */
+    UpdateScheduler(long period, long minticks, long maxticks, double lowtps) {
+        configure(period, minticks, maxticks, lowtps);
+    }
+
+    /* Apply settings on reload - unchanged settings keep the adapted period, and the measured TPS is always kept */
+    void configure(long period, long minticks, long maxticks, double lowtps) {
+        maxticks = Math.max(minticks, maxticks);
+        if((period == baseperiod) && (minticks == this.minticks) && (maxticks == this.maxticks) && (lowtps == this.lowtps))
+            return;
+        this.minticks = minticks;
+        this.maxticks = maxticks;
+        this.lowtps = lowtps;
+        this.baseperiod = period;
+        this.period = clamp(period);
+    }
+
+    private long clamp(long ticks) {
+        return Math.max(minticks, Math.min(maxticks, ticks));
+    }
+
+    /* Update task has been scheduled to run in ticks */
+    void scheduled(long ticks) {
+        scheduledat = System.nanoTime();
+        scheduledticks = ticks;
+    }
+
+    /* Scheduled update task has started - measure tick rate over its delay */
+    void started() {
+        if(scheduledticks > 0) {
+            double secs = (System.nanoTime() - scheduledat) / 1000000000.0;
+            if(secs > 0.0)
+                tps = Math.min(20.0, scheduledticks / secs);
+            scheduledticks = 0;
+        }
+    }
+
+    /* Get delay before next update, given whether the last one changed any markers */
+    long nextPeriod(boolean changed) {
+        if(changed)
+            period = period / 2;
+        else
+            period = period * 2;
+        if(tps < lowtps)    /* Lagging - back off further */
+            period = period * 2;
+        period = clamp(period);
+        return period;
+    }
+
+    /* Get delay before retrying an update that did not finish - the period is left as it was */
+    long retryPeriod() {
+        return minticks;
+    }
+    
+    long getPeriod() {
+        return period;
+    }
+
+    double getTPS() {
+        return tps;
+    }
+}
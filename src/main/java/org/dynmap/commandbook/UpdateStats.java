@@ -0,0 +1,166 @@
+package org.dynmap.commandbook;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Timings and counters for one layer's updates.  Scan and diff times are recorded by the async
+ * update stage, the rest on the server thread, so everything here is synchronized.
+ */
+public class UpdateStats implements UpdateStatsMBean {
+    /**
+     * Histogram of times, in power of 2 microsecond buckets
+     */
+    static class Histogram {
+        private static final int BUCKETS = 40;
+        private final long[] buckets = new long[BUCKETS];
+        private long count;
+        private long sum;
+        private long max;
+        
+        void add(long nanos) {
+            long us = nanos / 1000;
+            int b = 64 - Long.numberOfLeadingZeros(us);   /* 0 for 0us, 1 for 1us, 2 for 2-3us, ... */
+            if(b >= BUCKETS) b = BUCKETS - 1;
+            buckets[b]++;
+            count++;
+            sum += nanos;
+            if(nanos > max) max = nanos;
+        }
+        
+        double meanMs() {
+            return (count > 0) ? (sum / (double)count) / 1000000.0 : 0.0;
+        }
+        
+        double maxMs() {
+            return max / 1000000.0;
+        }
+        
+        /* Upper bound of bucket holding given percentile */
+        double percentileMs(double pct) {
+            if(count == 0) return 0.0;
+            long target = (long)Math.ceil(count * pct / 100.0);
+            long seen = 0;
+            for(int b = 0; b < BUCKETS; b++) {
+                seen += buckets[b];
+                if(seen >= target) {
+                    double upper = (b == 0) ? 0.0 : ((1L << b) - 1) / 1000.0;
+                    return Math.min(upper, maxMs());
+                }
+            }
+            return maxMs();
+        }
+        
+        void reset() {
+            for(int b = 0; b < BUCKETS; b++)
+                buckets[b] = 0;
+            count = sum = max = 0;
+        }
+    }
+    
+    final String layer;
+    private final Histogram scan = new Histogram();
+    private final Histogram diff = new Histogram();
+    private final Histogram apply = new Histogram();
+    private final Histogram mainthread = new Histogram();
+    private long cycles;
+    private int markercount;
+    private int lastcreated, lastupdated, lastdeleted, lastunchanged, lastrejected;
+    private long lastapicalls;
+    private long totcreated, totupdated, totdeleted, totrejected, totapicalls;
+    /* Main thread time and API calls outside of update cycles (events), added to next cycle */
+    private long pendingmain;
+    private long pendingcalls;
+    
+    UpdateStats(String layer) {
+        this.layer = layer;
+    }
+    
+    /* Async stage finished for a cycle */
+    synchronized void recordScan(long scannanos, long diffnanos, int rejected) {
+        scan.add(scannanos);
+        diff.add(diffnanos);
+        lastrejected = rejected;
+        totrejected += rejected;
+    }
+    
+    /* Server thread time spent on layer outside of an update cycle */
+    synchronized void recordEvent(long nanos, long apicalls) {
+        pendingmain += nanos;
+        pendingcalls += apicalls;
+        totapicalls += apicalls;
+    }
+    
+    /* Update cycle applied */
+    synchronized void recordApply(long applynanos, int created, int updated, int deleted, int unchanged, long apicalls, int markercount) {
+        cycles++;
+        apply.add(applynanos);
+        mainthread.add(applynanos + pendingmain);
+        lastcreated = created;
+        lastupdated = updated;
+        lastdeleted = deleted;
+        lastunchanged = unchanged;
+        lastapicalls = apicalls + pendingcalls;
+        totcreated += created;
+        totupdated += updated;
+        totdeleted += deleted;
+        totapicalls += apicalls;
+        pendingmain = pendingcalls = 0;
+        this.markercount = markercount;
+    }
+    
+    /* Lines for stats command */
+    synchronized List<String> format() {
+        List<String> lines = new ArrayList<String>();
+        lines.add(layer + ": " + markercount + " markers, " + cycles + " updates");
+        lines.add("  scan: " + fmt(scan) + "  diff: " + fmt(diff));
+        lines.add("  apply: " + fmt(apply) + "  main thread: " + fmt(mainthread));
+        lines.add("  last update: " + lastcreated + " created, " + lastupdated + " updated, " + lastdeleted + " deleted, " +
+            lastunchanged + " unchanged, " + lastrejected + " filtered, " + lastapicalls + " API calls");
+        lines.add("  total: " + totcreated + " created, " + totupdated + " updated, " + totdeleted + " deleted, " +
+            totrejected + " filtered, " + totapicalls + " API calls");
+        return lines;
+    }
+    
+    private static String fmt(Histogram h) {
+        return String.format("mean %.2fms p95 %.2fms max %.2fms", h.meanMs(), h.percentileMs(95.0), h.maxMs());
+    }
+    
+    public synchronized long getCycles() { return cycles; }
+    public synchronized int getMarkerCount() { return markercount; }
+    public synchronized double getScanTimeMean() { return scan.meanMs(); }
+    public synchronized double getScanTimeP95() { return scan.percentileMs(95.0); }
+    public synchronized double getScanTimeMax() { return scan.maxMs(); }
+    public synchronized double getDiffTimeMean() { return diff.meanMs(); }
+    public synchronized double getDiffTimeP95() { return diff.percentileMs(95.0); }
+    public synchronized double getDiffTimeMax() { return diff.maxMs(); }
+    public synchronized double getApplyTimeMean() { return apply.meanMs(); }
+    public synchronized double getApplyTimeP95() { return apply.percentileMs(95.0); }
+    public synchronized double getApplyTimeMax() { return apply.maxMs(); }
+    public synchronized double getMainThreadTimeMean() { return mainthread.meanMs(); }
+    public synchronized double getMainThreadTimeP95() { return mainthread.percentileMs(95.0); }
+    public synchronized double getMainThreadTimeMax() { return mainthread.maxMs(); }
+    public synchronized int getLastCreated() { return lastcreated; }
+    public synchronized int getLastUpdated() { return lastupdated; }
+    public synchronized int getLastDeleted() { return lastdeleted; }
+    public synchronized int getLastUnchanged() { return lastunchanged; }
+    public synchronized int getLastRejected() { return lastrejected; }
+    public synchronized long getLastApiCalls() { return lastapicalls; }
+    public synchronized long getTotalCreated() { return totcreated; }
+    public synchronized long getTotalUpdated() { return totupdated; }
+    public synchronized long getTotalDeleted() { return totdeleted; }
+    public synchronized long getTotalRejected() { return totrejected; }
+    public synchronized long getTotalApiCalls() { return totapicalls; }
+    
+    public synchronized void reset() {
+        scan.reset();
+        diff.reset();
+        apply.reset();
+        mainthread.reset();
+        cycles = 0;
+        lastcreated = lastupdated = lastdeleted = lastunchanged = lastrejected = 0;
+        lastapicalls = 0;
+        totcreated = totupdated = totdeleted = totrejected = totapicalls = 0;
+        pendingmain = pendingcalls = 0;
+    }
+}
@@ -0,0 +1,37 @@
+package org.dynmap.commandbook;
+
+/**
+ * JMX view of a layer's update statistics - times are in milliseconds
+ */
+public interface UpdateStatsMBean {
+    public long getCycles();
+    public int getMarkerCount();
+    
+    public double getScanTimeMean();
+    public double getScanTimeP95();
+    public double getScanTimeMax();
+    public double getDiffTimeMean();
+    public double getDiffTimeP95();
+    public double getDiffTimeMax();
+    public double getApplyTimeMean();
+    public double getApplyTimeP95();
+    public double getApplyTimeMax();
+    public double getMainThreadTimeMean();
+    public double getMainThreadTimeP95();
+    public double getMainThreadTimeMax();
+    
+    public int getLastCreated();
+    public int getLastUpdated();
+    public int getLastDeleted();
+    public int getLastUnchanged();
+    public int getLastRejected();
+    public long getLastApiCalls();
+    
+    public long getTotalCreated();
+    public long getTotalUpdated();
+    public long getTotalDeleted();
+    public long getTotalRejected();
+    public long getTotalApiCalls();
+    
+    public void reset();
+}
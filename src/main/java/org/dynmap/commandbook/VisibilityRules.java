@@ -0,0 +1,191 @@
+package org.dynmap.commandbook;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Visible and hidden marker lists, compiled once.  Each entry can be:
+ *   an exact ID, "world:<worldname>" for all markers on a world, a wildcard
+ *   pattern using '*' and '?', or "regex:<expression>".
+ * Wildcards are allowed in world names too.  All patterns in a list are combined into one
+ * regular expression, so checking an ID costs one match, however many rules there are - except
+ * expressions using backreferences or named groups, which would change meaning if combined, so
+ * are matched on their own.
+ */
+class VisibilityRules {
+    private final RuleList visible;
+    private final RuleList hidden;
+    
+    VisibilityRules(List<String> visiblelist, List<String> hiddenlist) {
+        visible = new RuleList(visiblelist);
+        hidden = new RuleList(hiddenlist);
+    }
+    
+    /* Resolve rules for world - done once per world per pass, and not shared between threads */
+    WorldFilter forWorld(String wname) {
+        return new WorldFilter(wname);
+    }
+    
+    /* Rules that apply to markers on one world */
+    class WorldFilter {
+        /* Every marker on world is hidden */
+        final boolean allhidden;
+        /* Need to check ID against visible list */
+        private final boolean checkvisible;
+        private final Matcher[] visiblematch;
+        private final Matcher[] hiddenmatch;
+        
+        private WorldFilter(String wname) {
+            allhidden = hidden.matchesWorld(wname);
+            checkvisible = (visible.isEmpty() == false) && (visible.matchesWorld(wname) == false);
+            visiblematch = checkvisible ? visible.newMatcher() : null;
+            hiddenmatch = hidden.newMatcher();
+        }
+        
+        boolean isVisible(String id) {
+            if(allhidden)
+                return false;
+            if(checkvisible && (visible.matchesID(id, visiblematch) == false))
+                return false;
+            if(hidden.matchesID(id, hiddenmatch))
+                return false;
+            return true;
+        }
+    }
+    
+    /* One compiled list of rules */
+    private static class RuleList {
+        private final Set<String> ids = new HashSet<String>();
+        private final Set<String> worlds = new HashSet<String>();
+        /* Combined pattern first (null if none), then patterns that can't be combined */
+        private final Pattern[] idpatterns;
+        private final Pattern[] worldpatterns;
+        private final boolean empty;
+        
+        RuleList(List<String> lst) {
+            List<String> idpats = new ArrayList<String>();
+            List<String> worldpats = new ArrayList<String>();
+            List<Pattern> idsep = new ArrayList<Pattern>();
+            List<Pattern> worldsep = new ArrayList<Pattern>();
+            if(lst != null) {
+                for(String v : lst) {
+                    if(v == null) continue;
+                    if(v.startsWith("world:"))
+                        addRule(v.substring(6), worlds, worldpats, worldsep);
+                    else
+                        addRule(v, ids, idpats, idsep);
+                }
+            }
+            empty = ids.isEmpty() && worlds.isEmpty() && idpats.isEmpty() && worldpats.isEmpty() && idsep.isEmpty() && worldsep.isEmpty();
+            idpatterns = combine(idpats, idsep);
+            worldpatterns = combine(worldpats, worldsep);
+        }
+        
+        private static void addRule(String v, Set<String> exact, List<String> pats, List<Pattern> separate) {
+            if(v.startsWith("regex:")) {
+                String re = v.substring(6);
+                try {
+                    Pattern p = Pattern.compile(re);
+                    if(usesGroups(re))
+                        separate.add(p);
+                    else
+                        pats.add(re);
+                } catch (PatternSyntaxException psx) {
+                    DynmapCommandBookPlugin.severe("Invalid marker pattern '" + v + "' - ignored");
+                }
+            }
+            else if((v.indexOf('*') >= 0) || (v.indexOf('?') >= 0))
+                pats.add(wildcardToRegex(v));
+            else
+                exact.add(v);
+        }
+        
+        private static String wildcardToRegex(String v) {
+            StringBuilder sb = new StringBuilder();
+            int start = 0;
+            for(int i = 0; i < v.length(); i++) {
+                char c = v.charAt(i);
+                if((c == '*') || (c == '?')) {
+                    if(i > start)
+                        sb.append(Pattern.quote(v.substring(start, i)));
+                    sb.append((c == '*') ? ".*" : ".");
+                    start = i + 1;
+                }
+            }
+            if(start < v.length())
+                sb.append(Pattern.quote(v.substring(start)));
+            return sb.toString();
+        }
+        
+        /* Check if expression refers to its groups - by number (\1) or name (\k<name>), or names one */
+        private static boolean usesGroups(String re) {
+            for(int i = 0; i < re.length() - 1; i++) {
+                char c = re.charAt(i);
+                char n = re.charAt(i + 1);
+                if(c == '\\') {
+                    if(((n >= '1') && (n <= '9')) || (n == 'k'))
+                        return true;
+                    i++;    /* Skip escaped character */
+                }
+                else if((c == '(') && (n == '?') && re.startsWith("?<", i + 1) && (re.length() > i + 3) &&
+                        Character.isLetter(re.charAt(i + 3))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        
+        private static Pattern[] combine(List<String> pats, List<Pattern> separate) {
+            Pattern[] out = new Pattern[separate.size() + 1];
+            if(pats.isEmpty() == false) {
+                StringBuilder sb = new StringBuilder();
+                for(String p : pats) {
+                    if(sb.length() > 0) sb.append('|');
+                    sb.append("(?:").append(p).append(')');
+                }
+                out[0] = Pattern.compile(sb.toString());
+            }
+            for(int i = 0; i < separate.size(); i++)
+                out[i + 1] = separate.get(i);
+            return out;
+        }
+        
+        boolean isEmpty() {
+            return empty;
+        }
+        
+        Matcher[] newMatcher() {
+            Matcher[] m = new Matcher[idpatterns.length];
+            for(int i = 0; i < m.length; i++) {
+                if(idpatterns[i] != null)
+                    m[i] = idpatterns[i].matcher("");
+            }
+            return m;
+        }
+        
+        boolean matchesWorld(String wname) {
+            if(worlds.contains(wname))
+                return true;
+            for(Pattern p : worldpatterns) {
+                if((p != null) && p.matcher(wname).matches())
+                    return true;
+            }
+            return false;
+        }
+        
+        boolean matchesID(String id, Matcher[] m) {
+            if(ids.contains(id))
+                return true;
+            for(Matcher mm : m) {
+                if((mm != null) && mm.reset(id).matches())
+                    return true;
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package org.dynmap.commandbook;
+
+import java.util.List;
+
+/**
+ * Snapshot of one world's visible locations for a layer, kept from one update to the next instead
+ * of being built again.  An open addressing table keyed by location name: each scan stamps the
+ * entries it sees with its generation, so locations that are gone are found by sweeping the table
+ * for old stamps, and a scan that finds no changes allocates nothing.  Removed entries are left as
+ * tombstones until the table is next resized.  Only used by the async update stage.
+ */
+class WorldSnapshot {
+    private static final String TOMBSTONE = new String("");
+    private static final int MIN_CAPACITY = 16;
+
+    final String world;
+    private String[] keys;
+    private MarkerRecord[] recs;
+    private int[] gens;
+    private int count;  /* Live entries */
+    private int used;   /* Live entries and tombstones */
+    private int gen;
+
+    WorldSnapshot(String world) {
+        this.world = world;
+        alloc(MIN_CAPACITY);
+    }
+
+    private void alloc(int cap) {
+        keys = new String[cap];
+        recs = new MarkerRecord[cap];
+        gens = new int[cap];
+        count = used = 0;
+    }
+
+    int size() {
+        return count;
+    }
+
+    /* Start new scan - entries not seen by it are removed by sweep() */
+    void nextGeneration() {
+        gen++;
+    }
+
+    private int slot(String name) {
+        int h = name.hashCode() * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & (keys.length - 1);
+    }
+
+    /* Find slot holding name - -1 if none */
+    private int find(String name) {
+        int mask = keys.length - 1;
+        for(int i = slot(name); ; i = (i + 1) & mask) {
+            String k = keys[i];
+            if(k == null)
+                return -1;
+            if((k != TOMBSTONE) && k.equals(name))
+                return i;
+        }
+    }
+
+    /* Get record for name, and mark it as seen by the current scan - null if none */
+    MarkerRecord see(String name) {
+        int i = find(name);
+        if(i < 0)
+            return null;
+        gens[i] = gen;
+        return recs[i];
+    }
+
+    /* Add or replace record, marked as seen by the current scan */
+    void put(MarkerRecord r) {
+        int i = find(r.name);
+        if(i >= 0) {
+            recs[i] = r;
+            gens[i] = gen;
+            return;
+        }
+        if((used + 1) * 4 > keys.length * 3) {  /* Keep at most 3/4 full, counting tombstones */
+            resize();
+        }
+        int mask = keys.length - 1;
+        for(i = slot(r.name); (keys[i] != null) && (keys[i] != TOMBSTONE); i = (i + 1) & mask)
+            ;
+        if(keys[i] == null)
+            used++;
+        keys[i] = r.name;
+        recs[i] = r;
+        gens[i] = gen;
+        count++;
+    }
+
+    /* Rehash live entries - doubling the table, unless it was mostly tombstones */
+    private void resize() {
+        String[] okeys = keys;
+        MarkerRecord[] orecs = recs;
+        int[] ogens = gens;
+        int cap = keys.length;
+        if((count + 1) * 2 > cap)
+            cap *= 2;
+        alloc(cap);
+        int mask = cap - 1;
+        for(int j = 0; j < okeys.length; j++) {
+            if((okeys[j] == null) || (okeys[j] == TOMBSTONE))
+                continue;
+            int i = slot(okeys[j]);
+            while(keys[i] != null)
+                i = (i + 1) & mask;
+            keys[i] = okeys[j];
+            recs[i] = orecs[j];
+            gens[i] = ogens[j];
+            count++;
+            used++;
+        }
+    }
+
+    /* Remove entries not seen by the current scan, adding them to deleted */
+    void sweep(List<MarkerRecord> deleted) {
+        for(int i = 0; i < keys.length; i++) {
+            if((keys[i] != null) && (keys[i] != TOMBSTONE) && (gens[i] != gen)) {
+                deleted.add(recs[i]);
+                keys[i] = TOMBSTONE;
+                recs[i] = null;
+                count--;
+            }
+        }
+    }
+
+    /* Add all records to list */
+    void getAll(List<MarkerRecord> out) {
+        for(int i = 0; i < keys.length; i++) {
+            if((keys[i] != null) && (keys[i] != TOMBSTONE))
+                out.add(recs[i]);
+        }
+    }
+
+    /* Size of table, in slots */
+    int capacity() {
+        return keys.length;
+    }
+}
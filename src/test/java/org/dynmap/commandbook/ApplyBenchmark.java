@@ -0,0 +1,102 @@
+package org.dynmap.commandbook;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.sk89q.commandbook.locations.NamedLocation;
+import com.sk89q.commandbook.locations.RootLocationManager;
+
+/**
+ * JMH benchmark of the apply stage of a layer update - the plugin's own homes layer applying a
+ * diff to a RecordingMarkerAPI, which keeps its markers in memory.  The diff to apply is made
+ * before each call, off the clock.  Run with LayerBenchmark.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ApplyBenchmark {
+    @Param({ "1000", "10000", "200000" })
+    public int homes;
+    @Param("4")
+    public int worlds;
+    /* Changes in each diff - every home new, 1% of homes moved, or every home the same as its marker */
+    @Param({ "create", "move", "unchanged" })
+    public String change;
+
+    /* Every home, as last applied */
+    private List<MarkerRecord> recs;
+    private DynmapCommandBookPlugin.Layer layer;
+    private MarkerDiff diff;
+
+    @Setup
+    public void setup() {
+        /* Records for every home, as the layer's own update makes them */
+        FakeServer server = new FakeServer();
+        RootLocationManager<NamedLocation> mgr = LayerBenchmark.makeHomes(server, new SyntheticLocations(homes, worlds));
+        DynmapCommandBookPlugin.Layer l = LayerBenchmark.newLayer(server);
+        recs = new ArrayList<MarkerRecord>(l.buildUpdate(mgr, server.worlds, new HashMap<String, double[]>()).creates);
+        l.cleanup(false);
+        if(change.equals("create") == false) {  /* Start with every marker on the map */
+            newLayer();
+            diff = new MarkerDiff();
+            diff.creates.addAll(recs);
+            apply();
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void nextDiff() {
+        diff = new MarkerDiff();
+        if(change.equals("create")) {
+            newLayer();
+            diff.creates.addAll(recs);
+        }
+        else if(change.equals("move")) {
+            for(int i = 0; i < recs.size(); i += 100) {
+                MarkerRecord r = recs.get(i);
+                r = new MarkerRecord(r.id, r.world, r.name, r.x + 1.0, r.y, r.z, r.label);
+                recs.set(i, r);
+                diff.updates.add(r);
+            }
+        }
+        else {  /* As when every label is built again, and none has changed */
+            diff.updates.addAll(recs);
+        }
+    }
+
+    /* Apply whole diff, as ApplyUpdate does over as many ticks as it takes - returns markers handled */
+    @Benchmark
+    public int apply() {
+        layer.startApply(diff);
+        for(int phase = 0; phase < MarkerDiff.PHASES; phase++)
+            layer.applyPhase(diff, phase, Long.MAX_VALUE, Integer.MAX_VALUE);
+        layer.flushApply();
+        layer.finishApply();
+        return layer.created + layer.updated + layer.deleted + layer.unchanged;
+    }
+
+    /* Empty homes layer, on a new marker API */
+    private void newLayer() {
+        if(layer != null)
+            layer.cleanup(false);
+        layer = LayerBenchmark.newLayer(new FakeServer());
+    }
+}
@@ -0,0 +1,260 @@
+package org.dynmap.commandbook;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Location;
+import org.bukkit.Server;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+import org.bukkit.event.Event;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.Listener;
+import org.bukkit.plugin.PluginDescriptionFile;
+import org.bukkit.plugin.PluginLogger;
+import org.bukkit.plugin.PluginManager;
+import org.bukkit.plugin.java.JavaPlugin;
+import org.bukkit.scheduler.BukkitScheduler;
+import org.bukkit.scheduler.BukkitTask;
+
+import com.sk89q.commandbook.CommandBook;
+
+/**
+ * Stand-in for the Bukkit server, for LoadSimulator, the benchmarks and tests - worlds, a scheduler run
+ * a tick at a time and a plugin manager that passes events to registered listeners.  Built from
+ * dynamic proxies; calls it doesn't know return null, zero or false.
+ */
+class FakeServer {
+    final Server server;
+    final List<World> worlds = new ArrayList<World>();
+    final List<Listener> listeners = new ArrayList<Listener>();
+    long tick;
+    /* Sync tasks waiting for their tick, and async tasks waiting for the next tick to end */
+    private final List<Task> sync = new ArrayList<Task>();
+    private final List<Runnable> async = new ArrayList<Runnable>();
+    private int nextid = 1;
+
+    private static class Task {
+        final long due;
+        final Runnable run;
+
+        Task(long due, Runnable run) {
+            this.due = due;
+            this.run = run;
+        }
+    }
+
+    FakeServer() {
+        final BukkitScheduler scheduler = proxy(BukkitScheduler.class, new InvocationHandler() {
+            public Object invoke(Object p, Method m, Object[] args) throws Throwable {
+                String name = m.getName();
+                if(name.equals("scheduleSyncDelayedTask")) {
+                    long delay = (args.length > 2) ? (Long)args[2] : 0;
+                    sync.add(new Task(tick + Math.max(1, delay), (Runnable)args[1]));
+                    return nextid++;
+                }
+                if(name.equals("runTaskAsynchronously")) {
+                    async.add((Runnable)args[1]);
+                    return task(false);
+                }
+                if(name.equals("runTaskTimer") || name.equals("runTaskTimerAsynchronously"))
+                    return task(name.equals("runTaskTimer"));
+                return handleDefault(p, m, args);
+            }
+        });
+        final PluginManager pm = proxy(PluginManager.class, new InvocationHandler() {
+            public Object invoke(Object p, Method m, Object[] args) throws Throwable {
+                if(m.getName().equals("registerEvents")) {
+                    listeners.add((Listener)args[0]);
+                    return null;
+                }
+                if(m.getName().equals("callEvent")) {
+                    callEvent((Event)args[0]);
+                    return null;
+                }
+                return handleDefault(p, m, args);
+            }
+        });
+        server = proxy(Server.class, new InvocationHandler() {
+            public Object invoke(Object p, Method m, Object[] args) throws Throwable {
+                String name = m.getName();
+                if(name.equals("getWorlds"))
+                    return new ArrayList<World>(worlds);
+                if(name.equals("getWorld")) {
+                    for(World w : worlds) {
+                        if(w.getName().equals(args[0])) return w;
+                    }
+                    return null;
+                }
+                if(name.equals("getScheduler"))
+                    return scheduler;
+                if(name.equals("getPluginManager"))
+                    return pm;
+                if(name.equals("getOnlinePlayers"))
+                    return new Player[0];
+                if(name.equals("getLogger"))
+                    return Logger.getLogger("Minecraft");
+                return handleDefault(p, m, args);
+            }
+        });
+    }
+
+    /* Plugin, as if loaded by this server - not yet enabled */
+    DynmapCommandBookPlugin loadPlugin() {
+        DynmapCommandBookPlugin plugin = new DynmapCommandBookPlugin();
+        setField(JavaPlugin.class, plugin, "server", server);
+        setField(DynmapCommandBookPlugin.class, null, "log", Logger.getLogger("Dynmap-CommandBook"));
+        return plugin;
+    }
+
+    /* CommandBook, as if loaded by this server - its location managers find worlds and log through
+     * Bukkit's server, so this server becomes that, if there is none yet */
+    CommandBook loadCommandBook() {
+        if(Bukkit.getServer() == null)
+            Bukkit.setServer(server);
+        CommandBook cb = new CommandBook();
+        setField(JavaPlugin.class, cb, "server", server);
+        setField(JavaPlugin.class, cb, "description", new PluginDescriptionFile("CommandBook", "2.3", CommandBook.class.getName()));
+        setField(JavaPlugin.class, cb, "logger", new PluginLogger(cb));
+        return cb;
+    }
+
+    /* Add world, with its spawn at 0,64,0 */
+    World addWorld(final String wname) {
+        World w = proxy(World.class, new InvocationHandler() {
+            public Object invoke(Object p, Method m, Object[] args) throws Throwable {
+                if(m.getName().equals("getName"))
+                    return wname;
+                if(m.getName().equals("getSpawnLocation"))
+                    return new Location((World)p, 0, 64, 0);
+                return handleDefault(p, m, args);
+            }
+        });
+        worlds.add(w);
+        return w;
+    }
+
+    World getWorld(String wname) {
+        return server.getWorld(wname);
+    }
+
+    Player getPlayer(final String pname) {
+        return proxy(Player.class, new InvocationHandler() {
+            public Object invoke(Object p, Method m, Object[] args) throws Throwable {
+                if(m.getName().equals("getName"))
+                    return pname;
+                return handleDefault(p, m, args);
+            }
+        });
+    }
+
+    /* Pass event to every registered handler for it - as the plugin manager does */
+    void callEvent(Event event) {
+        for(Listener l : new ArrayList<Listener>(listeners)) {
+            for(Method m : l.getClass().getDeclaredMethods()) {
+                Class<?>[] params = m.getParameterTypes();
+                if((m.getAnnotation(EventHandler.class) == null) || (params.length != 1) || (params[0].isInstance(event) == false))
+                    continue;
+                m.setAccessible(true);
+                try {
+                    m.invoke(l, event);
+                } catch (IllegalAccessException iax) {
+                    throw new IllegalStateException(iax);
+                } catch (InvocationTargetException itx) {
+                    throw new IllegalStateException(itx.getCause());
+                }
+            }
+        }
+    }
+
+    /* Run one tick - sync tasks that are due, then task - and return the server thread time it took.
+     * Async tasks started during the tick run after it, off the clock */
+    long runTick(Runnable task) {
+        long start = System.nanoTime();
+        tick++;
+        List<Task> due = new ArrayList<Task>();
+        for(Task t : sync) {
+            if(t.due <= tick) due.add(t);
+        }
+        sync.removeAll(due);
+        for(Task t : due)
+            t.run.run();
+        task.run();
+        long nanos = System.nanoTime() - start;
+        while(async.isEmpty() == false)
+            async.remove(0).run();
+        return nanos;
+    }
+
+    /* Check if no tasks are waiting */
+    boolean isIdle() {
+        return sync.isEmpty() && async.isEmpty();
+    }
+
+    private BukkitTask task(final boolean issync) {
+        final int id = nextid++;
+        return proxy(BukkitTask.class, new InvocationHandler() {
+            public Object invoke(Object p, Method m, Object[] args) throws Throwable {
+                if(m.getName().equals("getTaskId"))
+                    return id;
+                if(m.getName().equals("isSync"))
+                    return issync;
+                return handleDefault(p, m, args);
+            }
+        });
+    }
+
+    /* Harness only - the plugin gets these from Bukkit when loaded */
+    private static void setField(Class<?> cls, Object obj, String name, Object value) {
+        try {
+            Field f = cls.getDeclaredField(name);
+            f.setAccessible(true);
+            f.set(obj, value);
+        } catch (Exception x) {
+            throw new IllegalStateException("Unable to set " + name, x);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T> T proxy(Class<T> cls, InvocationHandler h) {
+        return (T)Proxy.newProxyInstance(cls.getClassLoader(), new Class<?>[] { cls }, h);
+    }
+
+    /* Object methods by identity - anything else returns null, zero or false */
+    static Object handleDefault(Object p, Method m, Object[] args) {
+        String name = m.getName();
+        if(name.equals("equals") && (args != null) && (args.length == 1))
+            return p == args[0];
+        if(name.equals("hashCode") && (args == null))
+            return System.identityHashCode(p);
+        if(name.equals("toString") && (args == null))
+            return m.getDeclaringClass().getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(p));
+        Class<?> c = m.getReturnType();
+        if(c.isPrimitive() == false)
+            return null;
+        if(c == boolean.class)
+            return false;
+        if(c == void.class)
+            return null;
+        if(c == char.class)
+            return (char)0;
+        if(c == long.class)
+            return 0L;
+        if(c == float.class)
+            return 0.0f;
+        if(c == double.class)
+            return 0.0;
+        if(c == byte.class)
+            return (byte)0;
+        if(c == short.class)
+            return (short)0;
+        return 0;
+    }
+}
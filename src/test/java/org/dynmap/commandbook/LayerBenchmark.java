@@ -0,0 +1,224 @@
+package org.dynmap.commandbook;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.sk89q.commandbook.locations.NamedLocation;
+import com.sk89q.commandbook.locations.RootLocationManager;
+
+/**
+ * JMH benchmarks of the async stage of a layer update - the plugin's own homes layer building its
+ * update from synthetic homes spread over several worlds, held in a RootLocationManager as
+ * CommandBook holds them - along with reading CommandBook's file directly, visibility checks and
+ * label formatting.  ApplyBenchmark covers the apply stage.
+ *
+ * Run both from test scope with: LayerBenchmark [homes] [worlds] - which adds the GC profiler, as
+ * -prof gc does, so bytes allocated per operation are reported along with time.  Or with
+ * mvn -P benchmark test, for every size.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LayerBenchmark {
+    /* Visibility rules typical of a large server */
+    static final List<String> HIDDEN = Arrays.asList("admin_*", "regex:test[0-9]+", "world:hidden_world", "somebody");
+    static final VisibilityRules RULES = new VisibilityRules(Collections.<String>emptyList(), HIDDEN);
+    static final LabelFormat LABELFMT = new LabelFormat("%name%(home)");
+
+    @Param({ "1000", "10000", "200000" })
+    public int homes;
+    @Param("4")
+    public int worlds;
+
+    private SyntheticLocations locs;
+    private FakeServer server;
+    private RootLocationManager<NamedLocation> mgr;
+    private final Map<String, double[]> spawns = new HashMap<String, double[]>();
+    /* Layers as left by their last update - with nothing changed, with 1% of homes moved each time,
+     * and one that starts from nothing each time */
+    private DynmapCommandBookPlugin.Layer steady, churned, cold;
+    private File dir;
+    private LocationFileReader rdr;
+    private VisibilityRules.WorldFilter filter;
+
+    public static void main(String[] args) throws RunnerException {
+        ChainedOptionsBuilder opts = new OptionsBuilder()
+            .include(LayerBenchmark.class.getName())
+            .include(ApplyBenchmark.class.getName())
+            .addProfiler(GCProfiler.class);
+        if(args.length > 0)
+            opts.param("homes", args[0]);
+        if(args.length > 1)
+            opts.param("worlds", args[1]);
+        new Runner(opts.build()).run();
+    }
+
+    @Setup
+    public void setup() throws IOException {
+        locs = new SyntheticLocations(homes, worlds);
+        server = new FakeServer();
+        mgr = makeHomes(server, locs);
+        steady = newLayer(server);
+        steady.buildUpdate(mgr, server.worlds, spawns);
+        churned = newLayer(server);
+        churned.buildUpdate(mgr, server.worlds, spawns);
+        cold = newLayer(server);
+        dir = makeFiles();
+        rdr = new LocationFileReader(dir, "homes");
+        filter = RULES.forWorld(locs.worlds[0]);
+    }
+
+    @TearDown
+    public void tearDown() {
+        steady.cleanup(false);
+        churned.cleanup(false);
+        cold.cleanup(false);
+        for(File f : dir.listFiles())
+            f.delete();
+        dir.delete();
+    }
+
+    /* Cold start - every home is new */
+    @Benchmark
+    public MarkerDiff coldStart() {
+        cold.lastsnap.clear();
+        return cold.buildUpdate(mgr, server.worlds, spawns);
+    }
+
+    /* Steady state - nothing changed */
+    @Benchmark
+    public MarkerDiff steady() {
+        return steady.buildUpdate(mgr, server.worlds, spawns);
+    }
+
+    /* Steady state - 1% of homes set again, as /sethome does, before each update */
+    @Benchmark
+    public MarkerDiff steadyChurn() {
+        for(int i = 0; i < Math.max(1, homes / 100); i++) {
+            int j = locs.rnd.nextInt(homes);
+            locs.xs[j] += 1.0;
+            setHome(server, mgr, locs, j);
+        }
+        return churned.buildUpdate(mgr, server.worlds, spawns);
+    }
+
+    /* Reading CommandBook's file directly */
+    @Benchmark
+    public int directFileParse() throws IOException {
+        rdr.reset();
+        return readAll();
+    }
+
+    /* ...when it has not changed since last read */
+    @Benchmark
+    public int directFileUnchanged() throws IOException {
+        return readAll();
+    }
+
+    @Benchmark
+    public int visibilityCheck() {
+        int vis = 0;
+        for(int i = 0; i < locs.count; i++) {
+            if(filter.isVisible(locs.names[i])) vis++;
+        }
+        return vis;
+    }
+
+    @Benchmark
+    public int labelFormat() {
+        int len = 0;
+        for(int i = 0; i < locs.count; i++)
+            len += LABELFMT.format(locs.names[i], locs.worlds[0], locs.xs[i], locs.ys[i], locs.zs[i]).length();
+        return len;
+    }
+
+    /* Server with each of locs' worlds, and a homes manager holding every home - stored per world */
+    static RootLocationManager<NamedLocation> makeHomes(FakeServer server, SyntheticLocations locs) {
+        for(String wname : locs.worlds)
+            server.addWorld(wname);
+        RootLocationManager<NamedLocation> mgr = new RootLocationManager<NamedLocation>(new MemoryLocationManager.Factory(), true);
+        for(int i = 0; i < locs.count; i++)
+            setHome(server, mgr, locs, i);
+        return mgr;
+    }
+
+    static void setHome(FakeServer server, RootLocationManager<NamedLocation> mgr, SyntheticLocations locs, int i) {
+        World w = server.getWorld(locs.worlds[locs.world[i]]);
+        mgr.create(locs.names[i], new Location(w, locs.xs[i], locs.ys[i], locs.zs[i]), null);
+    }
+
+    /* The plugin's homes layer, on a new marker API - with RULES and LABELFMT, and no file watching */
+    static DynmapCommandBookPlugin.Layer newLayer(FakeServer server) {
+        DynmapCommandBookPlugin plugin = server.loadPlugin();
+        plugin.markerapi = new RecordingMarkerAPI().api;
+        YamlConfiguration cfg = new YamlConfiguration();
+        cfg.set("update.watch-files", false);
+        cfg.set("layer.homes.hiddenmarkers", HIDDEN);
+        return plugin.new Layer("homes", cfg, "Homes", "house", LABELFMT.format);
+    }
+
+    /* Write homes.csv as CommandBook would - in a new temporary directory */
+    private File makeFiles() throws IOException {
+        File d = File.createTempFile("dmcbbench", "");
+        d.delete();
+        if(d.mkdir() == false)
+            throw new IOException("Cannot create " + d.getPath());
+        Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new File(d, "homes.csv")), "UTF-8"));
+        try {
+            for(int i = 0; i < locs.count; i++) {
+                w.write("\"" + locs.names[i] + "\",\"" + locs.worlds[locs.world[i]] + "\",\"" + locs.names[i] + "\",\"" + locs.xs[i] + "\",\"" +
+                    locs.ys[i] + "\",\"" + locs.zs[i] + "\",\"0.0\",\"0.0\"\n");
+            }
+        } finally {
+            w.close();
+        }
+        return d;
+    }
+
+    private int readAll() throws IOException {
+        int n = 0;
+        for(int w = 0; w < locs.worldcount; w++) {
+            LocationFileReader.Rows rows = rdr.read(locs.worlds[w], false);
+            for(int i = 0; i < rows.count; i++) {
+                if(rows.worlds[i].equals(locs.worlds[w])) n++;
+            }
+        }
+        if(n != locs.count)
+            throw new IllegalStateException("Read " + n + " of " + locs.count);
+        return n;
+    }
+}
@@ -0,0 +1,224 @@
+package org.dynmap.commandbook;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+import org.bukkit.event.server.ServerCommandEvent;
+
+import com.sk89q.commandbook.locations.NamedLocation;
+import com.sk89q.commandbook.locations.RootLocationManager;
+
+/**
+ * Replays typical server traffic - /sethome storms, players joining and leaving in bursts, warp
+ * imports and world loads - through the plugin's own update task, listeners and layers, running
+ * against a FakeServer and a RecordingMarkerAPI.  For each scenario, reports the marker API calls
+ * made, the server thread time taken by each tick and the peak size of the layers' marker state,
+ * sampled every tick, and checks the calls against a budget per 1000 homes.  The async stage of
+ * each update runs between ticks, off the clock.
+ *
+ * Run from test scope, with: LoadSimulator [homes] [worlds] - exits with status 1 if a scenario
+ * goes over its budget.  Budgets can be changed with -Dsimulation.budget.<scenario>=<calls>.
+ */
+public class LoadSimulator {
+    static final String[] SCENARIOS = { "cold-start", "steady", "churn", "sethome-storm", "join-burst", "quit-burst", "warp-import", "world-load" };
+    /* Maximum marker API calls per 1000 homes for each scenario (-1 = no limit) */
+    static final int[] BUDGETS = { 1000, 0, 10, 50, 100, 100, 100, -1 };
+    /* Longest a scenario may take to settle */
+    static final int MAX_TICKS = 100000;
+
+    private final int homes;
+    private final int worldcount;
+    private final List<String> out = new ArrayList<String>();
+    private int failures;
+
+    LoadSimulator(int homes, int worldcount) {
+        this.homes = homes;
+        this.worldcount = worldcount;
+    }
+
+    public static void main(String[] args) {
+        int homes = (args.length > 0) ? Integer.parseInt(args[0]) : 10000;
+        int worlds = (args.length > 1) ? Integer.parseInt(args[1]) : 4;
+        LoadSimulator sim = new LoadSimulator(Math.max(100, homes), Math.max(1, worlds));
+        for(String line : sim.run())
+            System.out.println(line);
+        if(sim.getFailures() > 0)
+            System.exit(1);
+    }
+
+    /* Run every scenario - returns report */
+    List<String> run() {
+        out.add("Simulating " + homes + " homes on " + worldcount + " worlds");
+        for(int i = 0; i < SCENARIOS.length; i++)
+            scenario(SCENARIOS[i], Integer.getInteger("simulation.budget." + SCENARIOS[i], BUDGETS[i]));
+        out.add((failures == 0) ? "All scenarios within budget" : (failures + " scenario(s) over budget"));
+        return out;
+    }
+
+    /* Scenarios over budget in last run */
+    int getFailures() {
+        return failures;
+    }
+
+    /* Start the plugin from cold, run the scenario's traffic, and run ticks until it is all applied */
+    private void scenario(String name, int budget) {
+        boolean onlineonly = name.equals("join-burst") || name.equals("quit-burst");
+        int burst = homes / 10;
+        Sim sim = new Sim(onlineonly);
+        if(name.equals("quit-burst")) {   /* Players already online at startup */
+            for(int i = 0; i < burst; i++)
+                sim.plugin.onlineplayers.add(sim.locs.names[i]);
+        }
+        sim.start();
+        if(name.equals("cold-start") == false) {
+            sim.settle();
+            sim.reset();
+        }
+        if(name.equals("churn")) {   /* 1% of homes moved */
+            for(int i = 0; i < homes; i += 100) {
+                sim.locs.move(i);
+                sim.setHome(i);
+            }
+        }
+        else if(name.equals("sethome-storm")) {   /* 5% of players set their home again, by command */
+            for(int i = 0; i < homes; i += 20) {
+                sim.locs.move(i);
+                sim.setHome(i);
+                sim.server.callEvent(new ServerCommandEvent(null, "sethome " + sim.locs.names[i]));
+            }
+        }
+        else if(name.equals("join-burst")) {    /* 10% of players join at once */
+            for(int i = 0; i < burst; i++)
+                sim.server.callEvent(new PlayerJoinEvent(sim.server.getPlayer(sim.locs.names[i]), null));
+        }
+        else if(name.equals("quit-burst")) {    /* ...and leave */
+            for(int i = 0; i < burst; i++)
+                sim.server.callEvent(new PlayerQuitEvent(sim.server.getPlayer(sim.locs.names[i]), null));
+        }
+        else if(name.equals("warp-import")) {   /* A tenth as many warps as homes added, on the warps layer */
+            for(int i = 0; i < burst; i++) {
+                World w = sim.worlds.get(i % sim.worlds.size());
+                sim.warpsmgr.create("warp" + i, new Location(w, sim.locs.xs[i], sim.locs.ys[i], sim.locs.zs[i]), null);
+            }
+        }
+        else if(name.equals("world-load")) {    /* New world loaded, with a quarter as many homes again */
+            int first = sim.locs.count;
+            sim.locs.add(homes / 4, "newplayer", true);
+            sim.worlds.add(sim.server.addWorld(sim.locs.worlds[sim.locs.worldcount - 1]));
+            for(int i = first; i < sim.locs.count; i++)
+                sim.setHome(i);
+        }
+        sim.settle();
+        long calls = sim.markers.getCalls();
+        double per1000 = calls * 1000.0 / homes;
+        boolean over = (budget >= 0) && (per1000 > budget);
+        if(over)
+            failures++;
+        out.add(String.format("%s: %d API calls (%.1f per 1000 homes, budget %s)%s", name, calls, per1000,
+            (budget >= 0) ? String.valueOf(budget) : "none", over ? " - OVER BUDGET" : ""));
+        out.add("  " + sim.markers.describeCalls());
+        out.add(String.format("  %d ticks, server thread %.1fms total, %.2fms max per tick, %.3fms mean; %d home and %d warp markers, peak layer state about %.1f MB",
+            sim.ticks, sim.totalnanos / 1000000.0, sim.maxnanos / 1000000.0, sim.totalnanos / 1000000.0 / Math.max(1, sim.ticks),
+            sim.markers.getMarkerCount("commandbook.homes"), sim.markers.getMarkerCount("commandbook.warps"), sim.peakbytes / 1048576.0));
+        sim.stop();
+    }
+
+    /* The plugin, started against a fake server and marker API, with the generated homes */
+    private class Sim {
+        final FakeServer server = new FakeServer();
+        final RecordingMarkerAPI markers = new RecordingMarkerAPI();
+        final SyntheticLocations locs = new SyntheticLocations(homes, worldcount);
+        final List<World> worlds = new ArrayList<World>();
+        final RootLocationManager<NamedLocation> homesmgr = new RootLocationManager<NamedLocation>(new MemoryLocationManager.Factory(), true);
+        final RootLocationManager<NamedLocation> warpsmgr = new RootLocationManager<NamedLocation>(new MemoryLocationManager.Factory(), true);
+        final DynmapCommandBookPlugin plugin = server.loadPlugin();
+        final YamlConfiguration cfg = new YamlConfiguration();
+        DynmapCommandBookPlugin.UpdateTask task;
+        /* Ticks run, server thread time and largest layer state since last reset */
+        int ticks;
+        long totalnanos, maxnanos;
+        long peakbytes;
+        private final List<MarkerRecord> recs = new ArrayList<MarkerRecord>();
+
+        Sim(boolean onlineonly) {
+            for(String wname : locs.worlds)
+                worlds.add(server.addWorld(wname));
+            for(int i = 0; i < locs.count; i++)
+                setHome(i);
+            plugin.markerapi = markers.api;
+            plugin.homesmgr = homesmgr;
+            plugin.warpsmgr = warpsmgr;
+            cfg.set("update.watch-files", false);
+            cfg.set("update.change-feed.size", 0);
+            cfg.set("layer.spawns.enable", false);
+            cfg.set("layer.homes.online-only", onlineonly);
+        }
+
+        /* Set up layers, as the plugin does when activated - marker API calls are counted from here */
+        void start() {
+            plugin.applyConfig(cfg);
+            plugin.stop = false;
+            task = plugin.new UpdateTask(1);
+            reset();
+        }
+
+        void reset() {
+            markers.reset();
+            ticks = 0;
+            totalnanos = maxnanos = 0;
+            peakbytes = estimateBytes();
+        }
+
+        /* Ask for an update, and run ticks until every layer has been updated and no tasks are waiting */
+        void settle() {
+            int target = task.completed + 2;
+            task.requests.add("simulation");
+            while((task.completed < target) || (server.isIdle() == false) || (task.getState().equals("idle") == false)) {
+                if(ticks >= MAX_TICKS)
+                    throw new IllegalStateException("No result after " + MAX_TICKS + " ticks");
+                long nanos = server.runTick(task);
+                ticks++;
+                totalnanos += nanos;
+                maxnanos = Math.max(maxnanos, nanos);
+                peakbytes = Math.max(peakbytes, estimateBytes());
+            }
+        }
+
+        /* Rough size of the layers' marker state - snapshot tables, records and their strings, marker
+         * states and marker IDs - from object headers, fields, characters and map entries */
+        long estimateBytes() {
+            return estimateBytes(plugin.homelayer) + estimateBytes(plugin.warplayer);
+        }
+
+        private long estimateBytes(DynmapCommandBookPlugin.Layer l) {
+            if(l == null)
+                return 0;
+            long bytes = 0;
+            for(WorldSnapshot snap : l.lastsnap.values()) {
+                bytes += snap.capacity() * 12L;
+                recs.clear();
+                snap.getAll(recs);
+                for(MarkerRecord r : recs)
+                    bytes += 56 + 40 + (2 * r.id.length()) + ((r.label != r.name) ? (40 + 2 * r.label.length()) : 0);
+            }
+            bytes += l.markers.size() * (48L + 56);
+            bytes += l.markerids.size() * 40L;
+            return bytes;
+        }
+
+        /* Set home, as CommandBook's /sethome does */
+        void setHome(int i) {
+            World w = server.getWorld(locs.worlds[locs.world[i]]);
+            homesmgr.create(locs.names[i], new Location(w, locs.xs[i], locs.ys[i], locs.zs[i]), null);
+        }
+
+        void stop() {
+            plugin.onDisable();
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package org.dynmap.commandbook;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.sk89q.commandbook.locations.FlatFileLocationsManager;
+import com.sk89q.commandbook.locations.NamedLocation;
+import com.sk89q.commandbook.locations.RootLocationManager;
+
+/**
+ * Checks that LocationFileReader reads CommandBook's flat files the way CommandBook does - each file
+ * is loaded by both, and the names, worlds and coordinates found in each loaded world compared.
+ */
+public class LocationFileReaderTest {
+    private static FakeServer server;
+    private File dir;
+
+    @BeforeClass
+    public static void setupServer() {
+        server = new FakeServer();
+        server.addWorld("world");
+        server.addWorld("world_nether");
+        server.loadCommandBook();
+    }
+
+    @Before
+    public void setup() throws IOException {
+        dir = File.createTempFile("dmcbtest", "");
+        dir.delete();
+        if(dir.mkdir() == false)
+            throw new IOException("Cannot create " + dir.getPath());
+    }
+
+    @After
+    public void tearDown() {
+        delete(dir);
+    }
+
+    @Test
+    public void quoting() throws IOException {
+        write("homes.csv",
+            "\"Alice\",\"world\",\"Alice\",\"10.5\",\"64.0\",\"-20.25\",\"0.0\",\"90.0\"",
+            "\"say \"\"hi\"\"\",\"world\",\"\",\"1.0\",\"2.0\",\"3.0\",\"0.0\",\"0.0\"",
+            "\"a,b\",\"world_nether\",\"Alice\",\"4.0\",\"5.0\",\"6.0\",\"0.0\",\"0.0\"",
+            "Bob,world,Bob,7,8,9,0,0",
+            "\"Carol\",\"world\",\"\",\"1.0E7\",\"-1.5E-3\",\"123456789.123456\",\"-12.5\",\"1.0E2\"",
+            "\"Dave\",\"world_nether\",\"Dave\",\"1.0\",\"2.0\"",
+            "\"Erin\",\"old_world\",\"Erin\",\"1.0\",\"2.0\",\"3.0\",\"0.0\",\"0.0\"");
+        check(false, 5);
+    }
+
+    @Test
+    public void whitespace() throws IOException {
+        write("homes.csv",
+            "\"  Frank  \",\"world\",\"Frank\",\"1.0\",\"2.0\",\"3.0\",\"0.0\",\"0.0\"\r",
+            "\"Mary Ann\",\"world\",\"\",\"4.0\",\"5.0\",\"6.0\",\"0.0\",\"0.0\"\r",
+            "\"\tGina\",\"world_nether\",\"\",\" 7.0\",\"8.0 \",\"9.0\",\"0.0\",\"0.0\"",
+            "",
+            "\"Hank\",\"world\",\"\",\"10.0\",\"11.0\",\"12.0\",\"0.0\",\"0.0\"");
+        check(false, 4);
+    }
+
+    @Test
+    public void duplicates() throws IOException {
+        write("homes.csv",
+            "\"Ivan\",\"world\",\"Ivan\",\"1.0\",\"2.0\",\"3.0\",\"0.0\",\"0.0\"",
+            "\"Judy\",\"world\",\"Judy\",\"4.0\",\"5.0\",\"6.0\",\"0.0\",\"0.0\"",
+            "\"ivan\",\"world\",\"ivan\",\"7.0\",\"8.0\",\"9.0\",\"0.0\",\"0.0\"",
+            "\"JUDY\",\"world_nether\",\"JUDY\",\"10.0\",\"11.0\",\"12.0\",\"0.0\",\"0.0\"",
+            "\"I van\",\"world\",\"\",\"13.0\",\"14.0\",\"15.0\",\"0.0\",\"0.0\"");
+        check(false, 2);
+    }
+
+    @Test
+    public void perWorld() throws IOException {
+        new File(dir, "homes").mkdir();
+        write("homes/world.csv",
+            "\"Kate\",\"world\",\"Kate\",\"1.0\",\"2.0\",\"3.0\",\"0.0\",\"0.0\"",
+            "\"Liam\",\"world\",\"Liam\",\"4.0\",\"5.0\",\"6.0\",\"0.0\",\"0.0\"",
+            "\"Mona\",\"world_nether\",\"Mona\",\"7.0\",\"8.0\",\"9.0\",\"0.0\",\"0.0\"",
+            "\"kate\",\"world\",\"kate\",\"10.0\",\"11.0\",\"12.0\",\"0.0\",\"0.0\"");
+        write("homes/world_nether.csv",
+            "\"Kate\",\"world_nether\",\"Kate\",\"13.0\",\"14.0\",\"15.0\",\"0.0\",\"0.0\"",
+            "\"Ned\",\"world_nether\",\"Ned\",\"16.0\",\"17.0\",\"18.0\",\"0.0\",\"0.0\"");
+        check(true, 4);
+    }
+
+    /* Load dir's homes with CommandBook's location manager and with LocationFileReader, and compare
+     * the locations each gives for every world - as the plugin uses them */
+    private void check(boolean perworld, int count) throws IOException {
+        RootLocationManager<NamedLocation> mgr = new RootLocationManager<NamedLocation>(
+            new FlatFileLocationsManager.LocationsFactory(dir, "homes"), perworld);
+        LocationFileReader rdr = new LocationFileReader(dir, "homes");
+        Set<String> expected = new TreeSet<String>();
+        Set<String> found = new TreeSet<String>();
+        for(World w : server.worlds) {
+            String wname = w.getName();
+            for(NamedLocation nl : mgr.getLocations(w)) {
+                Location loc = nl.getLocation();
+                if(loc.getWorld() == w)
+                    expected.add(describe(nl.getName(), wname, loc.getX(), loc.getY(), loc.getZ()));
+            }
+            LocationFileReader.Rows rows = rdr.read(wname, perworld);
+            for(int i = 0; i < rows.count; i++) {
+                if(rows.worlds[i].equals(wname))
+                    found.add(describe(rows.names[i], rows.worlds[i], rows.xs[i], rows.ys[i], rows.zs[i]));
+            }
+        }
+        assertEquals(expected, found);
+        assertEquals(count, found.size());
+    }
+
+    private static String describe(String name, String wname, double x, double y, double z) {
+        return "[" + name + "] " + wname + " " + x + "," + y + "," + z;
+    }
+
+    /* Write file in dir - lines as given, each ended with a newline */
+    private void write(String fname, String... lines) throws IOException {
+        Writer w = new OutputStreamWriter(new FileOutputStream(new File(dir, fname)), "UTF-8");
+        try {
+            for(String line : lines)
+                w.write(line + "\n");
+        } finally {
+            w.close();
+        }
+    }
+
+    private static void delete(File f) {
+        File[] files = f.listFiles();
+        if(files != null) {
+            for(File c : files)
+                delete(c);
+        }
+        f.delete();
+    }
+}
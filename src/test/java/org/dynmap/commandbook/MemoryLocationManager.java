@@ -0,0 +1,58 @@
+package org.dynmap.commandbook;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+
+import com.sk89q.commandbook.locations.LocationManager;
+import com.sk89q.commandbook.locations.LocationManagerFactory;
+import com.sk89q.commandbook.locations.NamedLocation;
+
+/**
+ * CommandBook's location manager for one world, held in memory - for LoadSimulator and the
+ * benchmarks, in a RootLocationManager as CommandBook's homes and warps components use it
+ */
+class MemoryLocationManager implements LocationManager<NamedLocation> {
+    /* By lower case name - names are not case sensitive */
+    private final Map<String, NamedLocation> locs = new HashMap<String, NamedLocation>();
+
+    static class Factory implements LocationManagerFactory<LocationManager<NamedLocation>> {
+        public LocationManager<NamedLocation> createManager() {
+            return new MemoryLocationManager();
+        }
+        public LocationManager<NamedLocation> createManager(World w) {
+            return new MemoryLocationManager();
+        }
+    }
+
+    public void castWorld(World w) {
+    }
+    public void load() {
+    }
+    public void save() {
+    }
+    public void updateWorlds() {
+    }
+    public NamedLocation get(String name) {
+        return locs.get(name.toLowerCase());
+    }
+    public NamedLocation create(String name, Location loc, Player player) {
+        NamedLocation nl = new NamedLocation(name, loc);
+        nl.setWorldName(loc.getWorld().getName());
+        if(player != null)
+            nl.setCreatorName(player.getName());
+        locs.put(name.toLowerCase(), nl);
+        return nl;
+    }
+    public boolean remove(String name) {
+        return locs.remove(name.toLowerCase()) != null;
+    }
+    public List<NamedLocation> getLocations() {
+        return new ArrayList<NamedLocation>(locs.values());
+    }
+}
@@ -0,0 +1,224 @@
+package org.dynmap.commandbook;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.dynmap.markers.Marker;
+import org.dynmap.markers.MarkerAPI;
+import org.dynmap.markers.MarkerIcon;
+import org.dynmap.markers.MarkerSet;
+
+/**
+ * Stand-in for dynmap's marker API, for LoadSimulator and the benchmarks - keeps marker sets and
+ * markers in memory, and counts every call that changes them (create*, set* and delete* methods),
+ * by method.  Built from dynamic proxies; calls it doesn't know return null, zero or false.
+ */
+class RecordingMarkerAPI {
+    final MarkerAPI api;
+    final Map<String, MarkerSet> sets = new LinkedHashMap<String, MarkerSet>();
+    private final Map<String, MarkerIcon> icons = new HashMap<String, MarkerIcon>();
+    /* Calls made since last reset, by method */
+    private final Map<String, Integer> calls = new TreeMap<String, Integer>();
+    private long total;
+
+    RecordingMarkerAPI() {
+        api = FakeServer.proxy(MarkerAPI.class, new InvocationHandler() {
+            public Object invoke(Object p, Method m, Object[] args) throws Throwable {
+                String name = m.getName();
+                record(name);
+                if(name.equals("getMarkerSets"))
+                    return new HashSet<MarkerSet>(sets.values());
+                if(name.equals("getMarkerSet"))
+                    return sets.get(args[0]);
+                if(name.equals("createMarkerSet")) {
+                    String id = (String)args[0];
+                    if(sets.containsKey(id))
+                        return null;
+                    MarkerSet ms = new SetHandler(id, (String)args[1], (Boolean)args[args.length - 1]).set;
+                    sets.put(id, ms);
+                    return ms;
+                }
+                if(name.equals("getMarkerIcon"))
+                    return getIcon((String)args[0]);
+                return FakeServer.handleDefault(p, m, args);
+            }
+        });
+    }
+
+    /* Start counting again */
+    void reset() {
+        calls.clear();
+        total = 0;
+    }
+
+    long getCalls() {
+        return total;
+    }
+
+    /* Calls made, by method - "createMarker 100, setLocation 10" */
+    String describeCalls() {
+        StringBuilder sb = new StringBuilder();
+        for(Map.Entry<String, Integer> ent : calls.entrySet()) {
+            if(sb.length() > 0) sb.append(", ");
+            sb.append(ent.getKey()).append(' ').append(ent.getValue());
+        }
+        return (sb.length() > 0) ? sb.toString() : "none";
+    }
+
+    /* Markers in sets whose ID starts with prefix */
+    int getMarkerCount(String prefix) {
+        int cnt = 0;
+        for(MarkerSet ms : sets.values()) {
+            if(ms.getMarkerSetID().startsWith(prefix))
+                cnt += ms.getMarkers().size();
+        }
+        return cnt;
+    }
+
+    private void record(String name) {
+        if(name.startsWith("create") || name.startsWith("set") || name.startsWith("delete")) {
+            Integer cnt = calls.get(name);
+            calls.put(name, (cnt != null) ? (cnt + 1) : 1);
+            total++;
+        }
+    }
+
+    /* Result of a change that was made - some API versions return whether it worked */
+    private static Object done(Method m) {
+        return (m.getReturnType() == boolean.class) ? Boolean.TRUE : null;
+    }
+
+    /* Any icon ID is valid */
+    private MarkerIcon getIcon(final String id) {
+        MarkerIcon ico = icons.get(id);
+        if(ico == null) {
+            ico = FakeServer.proxy(MarkerIcon.class, new InvocationHandler() {
+                public Object invoke(Object p, Method m, Object[] args) throws Throwable {
+                    if(m.getName().equals("getMarkerIconID") || m.getName().equals("getMarkerIconLabel"))
+                        return id;
+                    return FakeServer.handleDefault(p, m, args);
+                }
+            });
+            icons.put(id, ico);
+        }
+        return ico;
+    }
+
+    private class SetHandler implements InvocationHandler {
+        final MarkerSet set;
+        final String id;
+        String label;
+        final boolean persistent;
+        final Map<String, Marker> markers = new HashMap<String, Marker>();
+
+        SetHandler(String id, String label, boolean persistent) {
+            this.id = id;
+            this.label = label;
+            this.persistent = persistent;
+            set = FakeServer.proxy(MarkerSet.class, this);
+        }
+
+        public Object invoke(Object p, Method m, Object[] args) throws Throwable {
+            String name = m.getName();
+            record(name);
+            if(name.equals("getMarkerSetID"))
+                return id;
+            if(name.equals("getMarkerSetLabel"))
+                return label;
+            if(name.equals("setMarkerSetLabel")) {
+                label = (String)args[0];
+                return done(m);
+            }
+            if(name.equals("isMarkerSetPersistent"))
+                return persistent;
+            if(name.equals("getMarkers"))
+                return new HashSet<Marker>(markers.values());
+            if(name.equals("findMarker"))
+                return markers.get(args[0]);
+            if(name.equals("createMarker")) {   /* (id, label, [markup,] world, x, y, z, icon, persistent) */
+                String mid = (String)args[0];
+                if(markers.containsKey(mid))
+                    return null;
+                int i = args.length - 6;
+                MarkerHandler mh = new MarkerHandler(this, mid, (String)args[1], (String)args[i], (Double)args[i+1], (Double)args[i+2],
+                    (Double)args[i+3], (MarkerIcon)args[i+4], (Boolean)args[i+5]);
+                markers.put(mid, mh.marker);
+                return mh.marker;
+            }
+            if(name.equals("deleteMarkerSet")) {
+                if(sets.get(id) == set)
+                    sets.remove(id);
+                return done(m);
+            }
+            return FakeServer.handleDefault(p, m, args);
+        }
+    }
+
+    private class MarkerHandler implements InvocationHandler {
+        final Marker marker;
+        final SetHandler owner;
+        final String id;
+        String label, world;
+        double x, y, z;
+        MarkerIcon icon;
+        final boolean persistent;
+
+        MarkerHandler(SetHandler owner, String id, String label, String world, double x, double y, double z, MarkerIcon icon, boolean persistent) {
+            this.owner = owner;
+            this.id = id;
+            this.label = label;
+            this.world = world;
+            this.x = x; this.y = y; this.z = z;
+            this.icon = icon;
+            this.persistent = persistent;
+            marker = FakeServer.proxy(Marker.class, this);
+        }
+
+        public Object invoke(Object p, Method m, Object[] args) throws Throwable {
+            String name = m.getName();
+            record(name);
+            if(name.equals("getMarkerID"))
+                return id;
+            if(name.equals("getMarkerSet"))
+                return owner.set;
+            if(name.equals("getLabel"))
+                return label;
+            if(name.equals("getWorld"))
+                return world;
+            if(name.equals("getX"))
+                return x;
+            if(name.equals("getY"))
+                return y;
+            if(name.equals("getZ"))
+                return z;
+            if(name.equals("getMarkerIcon"))
+                return icon;
+            if(name.equals("isPersistentMarker"))
+                return persistent;
+            if(name.equals("setLabel")) {
+                label = (String)args[0];
+                return done(m);
+            }
+            if(name.equals("setLocation")) {
+                world = (String)args[0];
+                x = (Double)args[1]; y = (Double)args[2]; z = (Double)args[3];
+                return done(m);
+            }
+            if(name.equals("setMarkerIcon")) {
+                icon = (MarkerIcon)args[0];
+                return done(m);
+            }
+            if(name.equals("deleteMarker")) {
+                if(owner.markers.get(id) == marker)
+                    owner.markers.remove(id);
+                return done(m);
+            }
+            return FakeServer.handleDefault(p, m, args);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package org.dynmap.commandbook;
+
+import java.util.Random;
+
+/**
+ * Generated homes spread evenly over several worlds, for the benchmarks and LoadSimulator
+ */
+class SyntheticLocations {
+    final Random rnd = new Random(1234);
+    int count;
+    int worldcount;
+    String[] worlds;
+    String[] names;
+    int[] world;    /* Index of world for each home */
+    double[] xs, ys, zs;
+    
+    SyntheticLocations(int count, int worldcount) {
+        this.worldcount = (worldcount > 0) ? worldcount : 1;
+        worlds = new String[this.worldcount];
+        for(int i = 0; i < this.worldcount; i++)
+            worlds[i] = "world" + i;
+        names = new String[count];
+        world = new int[count];
+        xs = new double[count]; ys = new double[count]; zs = new double[count];
+        for(int i = 0; i < count; i++)
+            set(i, "player" + i, i % this.worldcount);
+        this.count = count;
+    }
+    
+    /* Add homes - on a new world, if newworld is set */
+    void add(int cnt, String prefix, boolean newworld) {
+        if(newworld) {
+            String[] nw = new String[worldcount + 1];
+            System.arraycopy(worlds, 0, nw, 0, worldcount);
+            nw[worldcount] = "world" + worldcount;
+            worlds = nw;
+            worldcount++;
+        }
+        int newcount = count + cnt;
+        String[] nn = new String[newcount];
+        System.arraycopy(names, 0, nn, 0, count);
+        names = nn;
+        int[] nwi = new int[newcount];
+        System.arraycopy(world, 0, nwi, 0, count);
+        world = nwi;
+        double[] nx = new double[newcount], ny = new double[newcount], nz = new double[newcount];
+        System.arraycopy(xs, 0, nx, 0, count);
+        System.arraycopy(ys, 0, ny, 0, count);
+        System.arraycopy(zs, 0, nz, 0, count);
+        xs = nx; ys = ny; zs = nz;
+        for(int i = count; i < newcount; i++)
+            set(i, prefix + i, newworld ? (worldcount - 1) : (i % worldcount));
+        count = newcount;
+    }
+    
+    /* Move a home, as if set again */
+    void move(int i) {
+        xs[i] = rnd.nextInt(20000) - 10000.5;
+        zs[i] = rnd.nextInt(20000) - 10000.5;
+    }
+    
+    private void set(int i, String name, int w) {
+        names[i] = name;
+        world[i] = w;
+        xs[i] = rnd.nextInt(20000) - 10000.5;
+        ys[i] = 64 + rnd.nextInt(64);
+        zs[i] = rnd.nextInt(20000) - 10000.5;
+    }
+}